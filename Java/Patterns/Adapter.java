@@ -0,0 +1,297 @@
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Create an adapter that makes a Flow.Subscriber look like an observer
+class SubscriberObserver implements Adapter.ObserverObject, Flow.Subscription {
+    private final Flow.Subscriber<? super String> subscriber;
+    private final BlockingQueue<String> buffer;
+    private final Adapter.OverflowPolicy policy;
+    private final Runnable onCancel;
+
+    // Demand requested by the subscriber that hasn't been used yet
+    private final AtomicLong demand = new AtomicLong();
+    // Number of threads that want to drain, only the first one actually does. Every signal to the
+    // subscriber (onNext, onComplete, onError) is sent from drain, so they never overlap.
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    // Set by complete() or a bad request, drain sends the matching signal once
+    private volatile boolean completed;
+    private volatile Throwable error;
+    private final AtomicBoolean terminated = new AtomicBoolean();
+
+    public SubscriberObserver(Flow.Subscriber<? super String> subscriber, int bufferSize, Adapter.OverflowPolicy policy,
+            Runnable onCancel) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        this.subscriber = subscriber;
+        this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        this.policy = policy;
+        this.onCancel = onCancel;
+    }
+
+    // Hand the subscription to the subscriber so it can start requesting messages
+    public void start() {
+        subscriber.onSubscribe(this);
+    }
+
+    // Messages wait in a bounded buffer until the subscriber asks for them
+    @Override
+    public void announce(String message) {
+        if (cancelled.get() || completed) {
+            return;
+        }
+        if (!enqueue(message)) {
+            dropped.incrementAndGet();
+        }
+        drain();
+    }
+
+    private boolean enqueue(String message) {
+        switch (policy) {
+            case BLOCK:
+                // Wait for the subscriber to request more, only safe when it requests from another thread
+                while (!buffer.offer(message)) {
+                    drain();
+                    if (cancelled.get()) {
+                        return false;
+                    }
+                    Thread.yield();
+                }
+                return true;
+            case DROP_OLDEST:
+                while (!buffer.offer(message)) {
+                    if (buffer.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                return true;
+            default:
+                return buffer.offer(message);
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            error = new IllegalArgumentException("Requested amount must be positive: " + n);
+            cancel();
+            drain();
+            return;
+        }
+        // Add to the demand, capping at Long.MAX_VALUE which means "unbounded"
+        demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (cancelled.compareAndSet(false, true)) {
+            buffer.clear();
+            if (onCancel != null) {
+                onCancel.run();
+            }
+        }
+    }
+
+    // Signal the subscriber that no more messages will come, once it has received what is buffered
+    public void complete() {
+        completed = true;
+        drain();
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    // Send buffered messages while there is demand
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return; // Another thread is draining and will see our request
+        }
+        int missed = 1;
+        do {
+            while (!cancelled.get() && demand.get() > 0) {
+                String message = buffer.poll();
+                if (message == null) {
+                    break;
+                }
+                if (demand.get() != Long.MAX_VALUE) {
+                    demand.decrementAndGet();
+                }
+                subscriber.onNext(message);
+            }
+            Throwable failure = error;
+            if (failure != null && terminated.compareAndSet(false, true)) {
+                subscriber.onError(failure);
+            } else if (completed && buffer.isEmpty() && !cancelled.get() && terminated.compareAndSet(false, true)) {
+                cancelled.set(true); // Nothing more is sent, but there is nothing to clean up either
+                subscriber.onComplete();
+            }
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // Getters for the buffer state
+    public int getBuffered() {
+        return buffer.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
+
+// Create an adapter that makes a subject look like a Flow.Publisher
+class SubjectPublisher implements Flow.Publisher<String> {
+    private final Adapter.Subject subject;
+    private final int bufferSize;
+    private final Adapter.OverflowPolicy policy;
+
+    public SubjectPublisher(Adapter.Subject subject, int bufferSize, Adapter.OverflowPolicy policy) {
+        this.subject = subject;
+        this.bufferSize = bufferSize;
+        this.policy = policy;
+    }
+
+    // Every subscriber becomes an observer of the subject until it cancels
+    @Override
+    public void subscribe(Flow.Subscriber<? super String> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null");
+        }
+        SubscriberObserver[] observer = new SubscriberObserver[1];
+        observer[0] = new SubscriberObserver(subscriber, bufferSize, policy, () -> subject.removeObserver(observer[0]));
+        // onSubscribe comes first (rule 1.9), the subject only starts announcing afterwards
+        observer[0].start();
+        subject.addObserver(observer[0]);
+        if (observer[0].isCancelled()) {
+            subject.removeObserver(observer[0]); // Cancelled during onSubscribe or just after
+        }
+    }
+}
+
+// Test the adapter
+public class Adapter {
+    // The observer types from Observer.java, cut down to what the adapter needs so this file compiles on its own
+    interface ObserverObject {
+        void announce(String message);
+    }
+
+    interface Subject {
+        void addObserver(ObserverObject observer);
+
+        void removeObserver(ObserverObject observer);
+
+        void notifyObservers(String message);
+    }
+
+    enum OverflowPolicy {
+        BLOCK,       // Wait for space, slowing down the publisher
+        DROP_OLDEST, // Throw away the oldest buffered message
+        DROP_NEWEST  // Throw away the message being published
+    }
+
+    // Create a subject that announces to its observers on the publisher's thread
+    static class NotificationSystem implements Subject {
+        private final List<ObserverObject> observers = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void addObserver(ObserverObject observer) {
+            observers.add(observer);
+        }
+
+        @Override
+        public void removeObserver(ObserverObject observer) {
+            observers.remove(observer);
+        }
+
+        @Override
+        public void notifyObservers(String message) {
+            for (ObserverObject observer : observers) {
+                observer.announce(message);
+            }
+        }
+
+        public int getObserverCount() {
+            return observers.size();
+        }
+    }
+
+    public static void main(String[] args) {
+        NotificationSystem system = new NotificationSystem();
+        SubjectPublisher publisher = new SubjectPublisher(system, 8, OverflowPolicy.DROP_OLDEST);
+
+        // A subscriber that only asks for one message at a time
+        int[] received = new int[1];
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        publisher.subscribe(new Flow.Subscriber<String>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(String message) {
+                received[0]++;
+                if (received[0] <= 3) {
+                    System.out.println("Subscriber got: " + message);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                System.out.println("Subscriber failed: " + error);
+            }
+
+            @Override
+            public void onComplete() {
+                System.out.println("Subscriber completed");
+            }
+        });
+
+        // Publish far more than the subscriber asked for, the buffer never grows past its bound
+        int maxBuffered = 0;
+        SubscriberObserver observer = new SubscriberObserver(new Flow.Subscriber<String>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                // Never requests anything
+            }
+
+            @Override
+            public void onNext(String message) {
+            }
+
+            @Override
+            public void onError(Throwable error) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        }, 8, OverflowPolicy.DROP_OLDEST, null);
+        observer.start();
+        system.addObserver(observer);
+
+        for (int i = 0; i < 100_000; i++) {
+            system.notifyObservers("Sensor reading " + i);
+            maxBuffered = Math.max(maxBuffered, observer.getBuffered());
+            if (i % 1000 == 0) {
+                subscription[0].request(1); // The slow subscriber catches up a little
+            }
+        }
+
+        System.out.println("Slow subscriber received: " + received[0]);
+        System.out.println("Idle subscriber buffered at most: " + maxBuffered + ", dropped: " + observer.getDroppedCount());
+        subscription[0].cancel();
+        System.out.println("Observers after cancel: " + system.getObserverCount());
+    }
+}
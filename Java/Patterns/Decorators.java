@@ -1,9 +1,20 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 // Define the Tool interface
 interface Tool {
     double damage();
     double durability();
     double speed();
     String description();
+
+    // Write the description into an existing builder instead of returning a new string
+    default void appendDescription(StringBuilder out) {
+        out.append(description());
+    }
 }
 
 // Create concrete classes that are tools 
@@ -85,14 +96,64 @@ class Hammer implements Tool {
     }
 }
 
+// Create a shared pool of enchantment suffixes so each common one is only built once.
+// Only whole values up to MAX_POOLED are pooled, so arbitrary values (from an inventory's
+// bulk enchantments, say) can't grow the pool without bound.
+final class EnchantmentDescriptors {
+    private static final int MAX_POOLED = 100;
+
+    private static final String[] SHARPNESS = new String[MAX_POOLED + 1];
+    private static final String[] DURABILITY = new String[MAX_POOLED + 1];
+    private static final String[] SPEED = new String[MAX_POOLED + 1];
+
+    private EnchantmentDescriptors() {
+    }
+
+    public static String sharpness(double value) {
+        return describe(SHARPNESS, value, " with Sharpness (+", " damage)");
+    }
+
+    public static String durability(double value) {
+        return describe(DURABILITY, value, " with Durability (+", ")");
+    }
+
+    public static String speed(double value) {
+        return describe(SPEED, value, " with Speed Boost (+", " speed)");
+    }
+
+    private static String describe(String[] pool, double value, String prefix, String suffix) {
+        int index = (int) value;
+        // Same bits as the int, so fractions, -0.0 and out-of-range values are built every time
+        if (index < 0 || index > MAX_POOLED
+            || Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(index)) {
+            return prefix + value + suffix;
+        }
+        // Strings are immutable, so a racing thread at worst builds the same value twice
+        String result = pool[index];
+        if (result == null) {
+            result = prefix + value + suffix;
+            pool[index] = result;
+        }
+        return result;
+    }
+}
+
 // Create an abstract class that accepts and is a tool
 abstract class ToolDecorator implements Tool {
-    protected Tool tool;
+    protected final Tool tool;
+
+    // Cache of the full description, built once per chain on first use
+    private String description;
 
     public ToolDecorator(Tool tool) {
         this.tool = tool;
     }
 
+    // Suffix this decorator adds to the description of the wrapped tool
+    protected String suffix() {
+        return "";
+    }
+
     @Override
     public double damage() {
         return tool.damage();
@@ -110,17 +171,45 @@ abstract class ToolDecorator implements Tool {
 
     @Override
     public String description() {
-        return tool.description();
+        // Strings are immutable, so a racing thread at worst builds the same value twice
+        String result = description;
+        if (result == null) {
+            StringBuilder out = new StringBuilder(64);
+            appendChain(out);
+            result = out.toString();
+            description = result;
+        }
+        return result;
+    }
+
+    // Chains straight into the builder. A subclass that builds its own description() must
+    // override this too, e.g. with out.append(description()), or its text is skipped here
+    @Override
+    public void appendDescription(StringBuilder out) {
+        String result = description;
+        if (result != null) {
+            out.append(result);
+        } else {
+            appendChain(out);
+        }
+    }
+
+    // Not appendDescription(), so an overriding description() can still call super.description()
+    private void appendChain(StringBuilder out) {
+        tool.appendDescription(out);
+        out.append(suffix());
     }
 }
 
 // Create decorators to change the underlying behavior of tools
 class SharpnessDecorator extends ToolDecorator {
     private final double sharpnessValue;
+    private final String suffix;
 
     public SharpnessDecorator(Tool tool, double sharpnessValue) {
         super(tool);
         this.sharpnessValue = sharpnessValue;
+        this.suffix = EnchantmentDescriptors.sharpness(sharpnessValue);
     }
 
     @Override
@@ -129,17 +218,24 @@ class SharpnessDecorator extends ToolDecorator {
     }
 
     @Override
-    public String description() {
-        return tool.description() + " with Sharpness (+" + sharpnessValue + " damage)";
+    protected String suffix() {
+        return suffix;
+    }
+
+    // Getter for the enchantment value
+    public double getSharpnessValue() {
+        return sharpnessValue;
     }
 }
 
 class DurabilityDecorator extends ToolDecorator {
     private final double durabilityValue;
+    private final String suffix;
 
     public DurabilityDecorator(Tool tool, double durabilityValue) {
         super(tool);
         this.durabilityValue = durabilityValue;
+        this.suffix = EnchantmentDescriptors.durability(durabilityValue);
     }
 
     @Override
@@ -148,17 +244,24 @@ class DurabilityDecorator extends ToolDecorator {
     }
 
     @Override
-    public String description() {
-        return tool.description() + " with Durability (+" + durabilityValue + ")";
+    protected String suffix() {
+        return suffix;
+    }
+
+    // Getter for the enchantment value
+    public double getDurabilityValue() {
+        return durabilityValue;
     }
 }
 
 class SpeedBoostDecorator extends ToolDecorator {
     private final double speedValue;
+    private final String suffix;
 
     public SpeedBoostDecorator(Tool tool, double speedValue) {
         super(tool);
         this.speedValue = speedValue;
+        this.suffix = EnchantmentDescriptors.speed(speedValue);
     }
 
     @Override
@@ -166,14 +269,456 @@ class SpeedBoostDecorator extends ToolDecorator {
         return speedValue + tool.speed(); // Adds extra speed
     }
 
+    @Override
+    protected String suffix() {
+        return suffix;
+    }
+
+    // Getter for the enchantment value
+    public double getSpeedValue() {
+        return speedValue;
+    }
+}
+
+// Create a flattened tool that stores the final stats of a decorator chain
+final class CompiledTool implements Tool {
+    private final double damage;
+    private final double durability;
+    private final double speed;
+    private final String description;
+    // Base type of the chain, kept so an inventory can still store it (null for a custom base tool)
+    private final ToolType type;
+
+    private CompiledTool(Tool tool) {
+        // Walk the chain once, every read after this is a plain field access
+        this.damage = tool.damage();
+        this.durability = tool.durability();
+        this.speed = tool.speed();
+        this.description = tool.description();
+        this.type = ToolType.find(tool);
+    }
+
+    // Collapse any tool (decorated or not) into a single immutable tool
+    public static CompiledTool compile(Tool tool) {
+        if (tool == null) {
+            throw new IllegalArgumentException("Tool to compile cannot be null");
+        }
+        if (tool instanceof CompiledTool) {
+            return (CompiledTool) tool; // Already flat, nothing to do
+        }
+        return new CompiledTool(tool);
+    }
+
+    @Override
+    public double damage() {
+        return damage;
+    }
+
+    @Override
+    public double durability() {
+        return durability;
+    }
+
+    @Override
+    public double speed() {
+        return speed;
+    }
+
     @Override
     public String description() {
-        return tool.description() + " with Speed Boost (+" + speedValue + " speed)";
+        return description;
+    }
+
+    @Override
+    public void appendDescription(StringBuilder out) {
+        out.append(description);
+    }
+
+    public ToolType type() {
+        return type;
+    }
+}
+
+// Define the base tool types so an inventory can store them as a single byte
+enum ToolType {
+    SWORD,
+    BOW,
+    HAMMER;
+
+    // Create a new undecorated tool of this type
+    public Tool create() {
+        switch (this) {
+            case SWORD:
+                return new Sword();
+            case BOW:
+                return new Bow();
+            default:
+                return new Hammer();
+        }
+    }
+
+    // Find the base type of any tool by unwrapping its decorators
+    public static ToolType of(Tool tool) {
+        ToolType type = find(tool);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown base tool: " + tool);
+        }
+        return type;
+    }
+
+    // Same as of(), but null for a tool that isn't built on a known base
+    static ToolType find(Tool tool) {
+        while (tool instanceof ToolDecorator) {
+            tool = ((ToolDecorator) tool).tool;
+        }
+        if (tool instanceof CompiledTool) {
+            return ((CompiledTool) tool).type();
+        }
+        if (tool instanceof Sword) {
+            return SWORD;
+        }
+        if (tool instanceof Bow) {
+            return BOW;
+        }
+        if (tool instanceof Hammer) {
+            return HAMMER;
+        }
+        return null;
+    }
+}
+
+// Create a columnar inventory that stores many tools in primitive arrays
+class ToolInventory {
+    private static final ToolType[] TYPES = ToolType.values();
+
+    // Each tool is a row index into these columns instead of an object graph
+    private byte[] types;
+    private double[] damage;
+    private double[] durability;
+    private double[] speed;
+    private int size;
+
+    public ToolInventory(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        this.types = new byte[capacity];
+        this.damage = new double[capacity];
+        this.durability = new double[capacity];
+        this.speed = new double[capacity];
+    }
+
+    public ToolInventory() {
+        this(16);
+    }
+
+    // Add a base tool with its default stats and return its row index
+    public int add(ToolType type) {
+        return add(type.create());
+    }
+
+    // Add any tool (decorated or not) by storing its final stats
+    public int add(Tool tool) {
+        ensureCapacity(size + 1);
+        types[size] = (byte) ToolType.of(tool).ordinal();
+        damage[size] = tool.damage();
+        durability[size] = tool.durability();
+        speed[size] = tool.speed();
+        return size++;
+    }
+
+    // Rebuild a Tool for a row, using decorators for any stats above the base
+    public Tool get(int index) {
+        checkIndex(index);
+        Tool tool = TYPES[types[index]].create();
+        double extraDamage = damage[index] - tool.damage();
+        double extraDurability = durability[index] - tool.durability();
+        double extraSpeed = speed[index] - tool.speed();
+        if (extraDamage != 0) {
+            tool = new SharpnessDecorator(tool, extraDamage);
+        }
+        if (extraDurability != 0) {
+            tool = new DurabilityDecorator(tool, extraDurability);
+        }
+        if (extraSpeed != 0) {
+            tool = new SpeedBoostDecorator(tool, extraSpeed);
+        }
+        return tool;
+    }
+
+    // Bulk operations: one tight loop over the columns for a whole tool type
+    public void applySharpness(ToolType type, double value) {
+        addToMatching(damage, type, value);
+    }
+
+    public void applyDurability(ToolType type, double value) {
+        addToMatching(durability, type, value);
+    }
+
+    public void applySpeedBoost(ToolType type, double value) {
+        addToMatching(speed, type, value);
+    }
+
+    // Bulk operations that apply to every tool in the inventory
+    public void applySharpness(double value) {
+        addToAll(damage, value);
+    }
+
+    public void applyDurability(double value) {
+        addToAll(durability, value);
+    }
+
+    public void applySpeedBoost(double value) {
+        addToAll(speed, value);
+    }
+
+    // Column getters for reading a single stat without building a Tool
+    public ToolType type(int index) {
+        checkIndex(index);
+        return TYPES[types[index]];
+    }
+
+    public double damage(int index) {
+        checkIndex(index);
+        return damage[index];
+    }
+
+    public double durability(int index) {
+        checkIndex(index);
+        return durability[index];
+    }
+
+    public double speed(int index) {
+        checkIndex(index);
+        return speed[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Branch-free masked add so the JIT can vectorize the loop
+    private void addToMatching(double[] column, ToolType type, double value) {
+        byte target = (byte) type.ordinal();
+        for (int i = 0; i < size; i++) {
+            column[i] += types[i] == target ? value : 0.0;
+        }
+    }
+
+    private void addToAll(double[] column, double value) {
+        for (int i = 0; i < size; i++) {
+            column[i] += value;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > types.length) {
+            int newCapacity = Math.max(capacity, types.length * 2);
+            types = Arrays.copyOf(types, newCapacity);
+            damage = Arrays.copyOf(damage, newCapacity);
+            durability = Arrays.copyOf(durability, newCapacity);
+            speed = Arrays.copyOf(speed, newCapacity);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
+
+// Create an interner that shares one instance per structurally identical tool chain
+final class ToolInterner {
+    private static final int SHARPNESS = 0;
+    private static final int DURABILITY = 1;
+    private static final int SPEED = 2;
+
+    // Base tools have no state, so one shared instance per type is enough
+    private static final Tool[] BASES = { new Sword(), new Bow(), new Hammer() };
+
+    // Canonical chains are held weakly so unused ones can still be collected
+    private static final Map<ChainKey, ChainRef> CHAINS = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Tool> COLLECTED = new ReferenceQueue<>();
+
+    private ToolInterner() {
+    }
+
+    // Get the shared instance of a base tool
+    public static Tool base(ToolType type) {
+        return BASES[type.ordinal()];
+    }
+
+    // Get the shared instance of a tool wrapped in one more enchantment
+    public static Tool sharpness(Tool tool, double value) {
+        return wrap(tool, SHARPNESS, value);
+    }
+
+    public static Tool durability(Tool tool, double value) {
+        return wrap(tool, DURABILITY, value);
+    }
+
+    public static Tool speed(Tool tool, double value) {
+        return wrap(tool, SPEED, value);
+    }
+
+    // Get the shared instance that is structurally identical to any tool chain.
+    // A chain with a tool or decorator the interner doesn't know (a custom decorator, a CompiledTool)
+    // can't be rebuilt from the table, so it is returned as it is.
+    public static Tool intern(Tool tool) {
+        Tool canonical = canonical(tool);
+        return canonical != null ? canonical : tool;
+    }
+
+    private static Tool wrap(Tool tool, int kind, double value) {
+        Tool parent = canonical(tool);
+        return parent != null ? lookup(parent, kind, value) : create(tool, kind, value);
+    }
+
+    // The canonical chain for a tool, or null if any link in it is unknown.
+    // Exact classes only, a subclass may change the stats or the description.
+    private static Tool canonical(Tool tool) {
+        Class<?> type = tool.getClass();
+        if (type == SharpnessDecorator.class) {
+            SharpnessDecorator decorator = (SharpnessDecorator) tool;
+            Tool parent = canonical(decorator.tool);
+            return parent == null ? null : lookup(parent, SHARPNESS, decorator.getSharpnessValue());
+        }
+        if (type == DurabilityDecorator.class) {
+            DurabilityDecorator decorator = (DurabilityDecorator) tool;
+            Tool parent = canonical(decorator.tool);
+            return parent == null ? null : lookup(parent, DURABILITY, decorator.getDurabilityValue());
+        }
+        if (type == SpeedBoostDecorator.class) {
+            SpeedBoostDecorator decorator = (SpeedBoostDecorator) tool;
+            Tool parent = canonical(decorator.tool);
+            return parent == null ? null : lookup(parent, SPEED, decorator.getSpeedValue());
+        }
+        // Base tools have no state, so any plain Sword is the shared Sword
+        for (Tool base : BASES) {
+            if (type == base.getClass()) {
+                return base;
+            }
+        }
+        return null;
+    }
+
+    // Number of canonical chains currently in the table
+    public static int size() {
+        expungeCollected();
+        return CHAINS.size();
+    }
+
+    private static Tool lookup(Tool parent, int kind, double value) {
+        expungeCollected();
+        ChainKey key = new ChainKey(parent, kind, value);
+        while (true) {
+            ChainRef ref = CHAINS.get(key);
+            Tool existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            Tool created = create(parent, kind, value);
+            ChainRef newRef = new ChainRef(created, key);
+            // Replace a missing or cleared entry, retry if another thread won the race
+            boolean installed = ref == null
+                ? CHAINS.putIfAbsent(key, newRef) == null
+                : CHAINS.replace(key, ref, newRef);
+            if (installed) {
+                return created;
+            }
+        }
+    }
+
+    private static Tool create(Tool parent, int kind, double value) {
+        switch (kind) {
+            case SHARPNESS:
+                return new SharpnessDecorator(parent, value);
+            case DURABILITY:
+                return new DurabilityDecorator(parent, value);
+            default:
+                return new SpeedBoostDecorator(parent, value);
+        }
+    }
+
+    // Drop entries whose canonical chain was garbage collected
+    private static void expungeCollected() {
+        ChainRef ref;
+        while ((ref = (ChainRef) COLLECTED.poll()) != null) {
+            CHAINS.remove(ref.key, ref);
+        }
+    }
+
+    // Key of a chain: the canonical tool it wraps plus the enchantment on top
+    private static final class ChainKey {
+        private final Tool parent;
+        private final int kind;
+        private final double value;
+
+        ChainKey(Tool parent, int kind, double value) {
+            this.parent = parent;
+            this.kind = kind;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ChainKey)) {
+                return false;
+            }
+            ChainKey key = (ChainKey) other;
+            // Parents are canonical, so identity is structural equality here
+            return parent == key.parent && kind == key.kind
+                && Double.compare(value, key.value) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(parent);
+            hash = 31 * hash + kind;
+            return 31 * hash + Double.hashCode(value);
+        }
+    }
+
+    private static final class ChainRef extends WeakReference<Tool> {
+        private final ChainKey key;
+
+        ChainRef(Tool tool, ChainKey key) {
+            super(tool, COLLECTED);
+            this.key = key;
+        }
     }
 }
 
 // Test the design patterns
 public class Decorators {
+    // Compare the heap used by many separate tool chains against interned ones
+    private static void measureInterning(int count) {
+        Tool[] tools = new Tool[count];
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            tools[i] = new DurabilityDecorator(new SharpnessDecorator(new Sword(), 7.0), 12.0);
+        }
+        long separate = usedHeap() - before;
+
+        Arrays.fill(tools, null);
+        before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            tools[i] = ToolInterner.durability(ToolInterner.sharpness(ToolInterner.base(ToolType.SWORD), 7.0), 12.0);
+        }
+        long interned = usedHeap() - before;
+
+        System.out.println("\nHeap for " + count + " tools:");
+        System.out.println("Separate chains: " + separate / (1024 * 1024) + " MB");
+        System.out.println("Interned chains: " + interned / (1024 * 1024) + " MB");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
     public static void main(String[] args) {
         // Test Sword
         Tool basicSword = new Sword();
@@ -206,5 +751,46 @@ public class Decorators {
         System.out.println("Damage: " + speedyHammer.damage());
         System.out.println("Durability: " + speedyHammer.durability());
         System.out.println("Speed: " + speedyHammer.speed());
+
+        // Test a compiled (flattened) tool
+        Tool compiledSword = CompiledTool.compile(fullyEnchantedSword);
+
+        System.out.println("\nCompiled Fully Enchanted Sword:");
+        System.out.println("Description: " + compiledSword.description());
+        System.out.println("Damage: " + compiledSword.damage());
+        System.out.println("Durability: " + compiledSword.durability());
+        System.out.println("Speed: " + compiledSword.speed());
+
+        // Test a columnar inventory with a bulk enchantment
+        ToolInventory inventory = new ToolInventory();
+        inventory.add(ToolType.SWORD);
+        inventory.add(ToolType.BOW);
+        inventory.add(durableEnchantedBow);
+        inventory.add(compiledSword);
+        inventory.applySharpness(ToolType.SWORD, 7.0);
+
+        System.out.println("\nInventory:");
+        for (int i = 0; i < inventory.size(); i++) {
+            System.out.println("- " + inventory.get(i).description() + ", Damage: " + inventory.damage(i));
+        }
+
+        // Test rendering many descriptions into one reusable builder
+        StringBuilder listing = new StringBuilder();
+        for (Tool tool : new Tool[] { fullyEnchantedSword, durableEnchantedBow, speedyHammer }) {
+            listing.append("- ");
+            tool.appendDescription(listing);
+            listing.append('\n');
+        }
+        System.out.print("\nListing:\n" + listing);
+
+        // Test interning: identical chains share one instance
+        Tool internedSword = ToolInterner.intern(enchantedSword);
+        Tool sameSword = ToolInterner.durability(ToolInterner.sharpness(ToolInterner.base(ToolType.SWORD), 7.0), 12.0);
+        System.out.println("\nInterned swords are the same instance: " + (internedSword == sameSword));
+
+        // Run with "benchmark" to compare heap usage of 10M tools
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            measureInterning(10_000_000);
+        }
     }
 }
@@ -1,71 +1,678 @@
-// Define an interface for the shape
-interface Shape {
-	void draw(); // This is the public method that every concrete class must implement
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// The built-in shapes are found by ShapeTypeProcessor at compile time, so compile with it:
+//     javac ShapeTypeProcessor.java
+//     javac -processor ShapeTypeProcessor Factory.java
+// Without the processor there is no GeneratedShapeIndex and javac stops with "cannot find symbol".
+
+// Define an annotation that registers a shape under a name, read at compile time only
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+@interface ShapeType {
+	String value();           // Name passed to ShapeFactory.getShape (case doesn't matter)
+	boolean stateless() default true; // Stateless shapes can be shared by getSharedShape
 }
 
-// Create a concrete class that implements the Shape interface
-class Circle implements Shape {
-	@Override
-	public void draw() {
-		System.out.println("Drawing a ciricle");
+// Create a canvas that buffers drawing output and writes it to a channel in large chunks
+class Canvas implements AutoCloseable {
+	// Rendering threads are daemons, so a canvas that is never closed doesn't keep the JVM alive
+	private static final ThreadFactory RENDERERS = task -> {
+		Thread thread = new Thread(task, "canvas-renderer");
+		thread.setDaemon(true);
+		return thread;
+	};
+
+	private final WritableByteChannel channel;
+	private ByteBuffer buffer;
+	private PrintStream printer;
+
+	// Kept between drawAll calls so the threads and chunk buffers are only created once
+	private ExecutorService executor;
+	private Canvas[] chunks = new Canvas[0];
+
+	// Create a canvas that flushes to the channel whenever its buffer is full
+	public Canvas(WritableByteChannel channel, int capacity) {
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(capacity);
+	}
+
+	// Create a canvas that only collects output, used for rendering in parallel
+	private Canvas(int capacity) {
+		this(null, capacity);
+	}
+
+	// Create a canvas that writes to standard output
+	public static Canvas toStdout(int capacity) {
+		return new Canvas(new FileOutputStream(FileDescriptor.out).getChannel(), capacity);
+	}
+
+	// Add already encoded output to the buffer
+	public void write(byte[] bytes) {
+		write(bytes, 0, bytes.length);
+	}
+
+	public void write(byte[] bytes, int offset, int length) {
+		if (buffer.remaining() < length) {
+			if (channel != null) {
+				flush();
+			}
+			if (buffer.remaining() < length) {
+				grow(length);
+			}
+		}
+		buffer.put(bytes, offset, length);
+	}
+
+	// Get a print stream that writes into this canvas, for drawing code that prints
+	public PrintStream printer() {
+		if (printer == null) {
+			printer = new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+					Canvas.this.write(new byte[] { (byte) b });
+				}
+
+				@Override
+				public void write(byte[] bytes, int offset, int length) {
+					Canvas.this.write(bytes, offset, length);
+				}
+			}, false, StandardCharsets.UTF_8);
+		}
+		return printer;
+	}
+
+	// Let a shape that can only print draw on standard output, after everything buffered before it.
+	// A canvas that only collects a chunk for drawAll can't do that without breaking the order.
+	void drawPrinting(Factory.Shape shape) {
+		if (channel == null) {
+			throw new IllegalStateException(shape.getClass().getSimpleName()
+				+ " has no draw(Canvas) and can't be drawn in parallel, wrap it in a PrintingShape");
+		}
+		flush();
+		shape.draw();
+	}
+
+	// Write everything buffered so far to the channel
+	public void flush() {
+		if (channel == null) {
+			return;
+		}
+		System.out.flush(); // Anything printed before must come out first
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write canvas output", e);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	// Draw every shape, each thread renders a chunk into its own canvas and the chunks are written in order
+	public void drawAll(List<? extends Factory.Shape> shapes, int threads, int chunkSize) {
+		if (threads <= 1) {
+			for (Factory.Shape shape : shapes) {
+				shape.draw(this);
+			}
+			return;
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive when drawing in parallel: " + chunkSize);
+		}
+		prepareRenderers(threads);
+		try {
+			List<Future<?>> rendering = new ArrayList<>(threads);
+			for (int start = 0; start < shapes.size(); start += threads * chunkSize) {
+				rendering.clear();
+				for (int i = 0; i < threads; i++) {
+					Canvas chunk = chunks[i];
+					int from = Math.min(start + i * chunkSize, shapes.size());
+					int to = Math.min(from + chunkSize, shapes.size());
+					rendering.add(executor.submit(() -> {
+						for (int j = from; j < to; j++) {
+							shapes.get(j).draw(chunk);
+						}
+					}));
+				}
+				for (int i = 0; i < threads; i++) {
+					rendering.get(i).get();
+					append(chunks[i]);
+				}
+			}
+		} catch (InterruptedException e) {
+			abandonRenderers();
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			abandonRenderers();
+			throw new IllegalStateException("Rendering failed", e.getCause());
+		}
 	}
-}
 
-// Create a concrete class that implements the Shape interface
-class Triangle implements Shape {
+	// Write what is still buffered and stop the rendering threads, the channel stays open
 	@Override
-	public void draw() {
-		System.out.println("Drawing a triangle");
+	public void close() {
+		try {
+			flush();
+		} finally {
+			stopRenderers();
+		}
+	}
+
+	private void stopRenderers() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	// Chunks may still be rendering or hold half a batch, so start over with new ones next time
+	private void abandonRenderers() {
+		stopRenderers();
+		chunks = new Canvas[0];
+	}
+
+	// Reuse the pool and one collecting canvas per chunk slot, only a different thread count replaces them
+	private void prepareRenderers(int threads) {
+		if (chunks.length != threads) {
+			stopRenderers();
+			Canvas[] resized = Arrays.copyOf(chunks, threads);
+			for (int i = chunks.length; i < threads; i++) {
+				resized[i] = new Canvas(buffer.capacity());
+			}
+			chunks = resized;
+		}
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threads, RENDERERS);
+		}
+	}
+
+	// Copy a collecting canvas into this one and reset it
+	private void append(Canvas chunk) {
+		chunk.buffer.flip();
+		while (chunk.buffer.hasRemaining()) {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			int length = Math.min(buffer.remaining(), chunk.buffer.remaining());
+			ByteBuffer slice = chunk.buffer.slice();
+			slice.limit(length);
+			buffer.put(slice);
+			chunk.buffer.position(chunk.buffer.position() + length);
+		}
+		chunk.buffer.clear();
+	}
+
+	private void grow(int needed) {
+		ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
 	}
 }
 
-// Create a concrete class that implements the Shape interface
-class Rectangle implements Shape {
+// Create an adapter for drawing code that prints, so it draws into a canvas instead of System.out
+class PrintingShape implements Factory.Shape {
+	private final Consumer<PrintStream> printing;
+
+	public PrintingShape(Consumer<PrintStream> printing) {
+		if (printing == null) {
+			throw new IllegalArgumentException("Printing code is required");
+		}
+		this.printing = printing;
+	}
+
 	@Override
 	public void draw() {
-		System.out.println("Drawing a rectangle");
+		printing.accept(System.out);
 	}
-}
-// Create a concrete class that implements the Shape interface
-class Square implements Shape {
+
 	@Override
-	public void draw() {
-		System.out.println("Drawing a square");
+	public void draw(Canvas canvas) {
+		printing.accept(canvas.printer());
 	}
 }
 
+// Create a lookup table from shape names to suppliers, matched without regard to case
+final class ShapeRegistry implements Factory.ShapeIndex {
+    private final String[] names;
+    private final Supplier<Factory.Shape>[] suppliers;
+    private final Factory.Shape[] shared;
+    private final int mask;
+
+    // Build an open-addressing table at least twice as large as the number of shapes
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ShapeRegistry(Map<String, Supplier<Factory.Shape>> shapes, Map<String, Boolean> stateless) {
+        int capacity = Integer.highestOneBit(Math.max(shapes.size(), 1) * 4 - 1);
+        this.names = new String[capacity];
+        this.suppliers = new Supplier[capacity];
+        this.shared = new Factory.Shape[capacity];
+        this.mask = capacity - 1;
+        for (Map.Entry<String, Supplier<Factory.Shape>> entry : shapes.entrySet()) {
+            int slot = hash(entry.getKey()) & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = entry.getKey();
+            suppliers[slot] = entry.getValue();
+            // Stateless shapes get one shared instance for the flyweight lookup
+            if (stateless.get(entry.getKey())) {
+                shared[slot] = entry.getValue().get();
+            }
+        }
+    }
+
+    // Find the slot for a name, or -1 (hashing and comparing ignore case, nothing is allocated)
+    int find(String name) {
+        int slot = hash(name) & mask;
+        while (names[slot] != null) {
+            if (names[slot].equalsIgnoreCase(name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    Factory.Shape create(int slot) {
+        return suppliers[slot].get();
+    }
+
+    Factory.Shape shared(int slot) {
+        Factory.Shape shape = shared[slot];
+        return shape != null ? shape : suppliers[slot].get();
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return find(name) >= 0;
+    }
+
+    @Override
+    public Factory.Shape create(String name) {
+        int slot = find(name);
+        return slot < 0 ? null : create(slot);
+    }
+
+    @Override
+    public Factory.Shape shared(String name) {
+        int slot = find(name);
+        return slot < 0 ? null : shared(slot);
+    }
+
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
+
 // Create the Factory design pattern 
 class ShapeFactory {
-	// Create a static method to return the right shape
-    public static Shape getShape(String shapeType) {
+    // The @ShapeType shapes, from the generated GeneratedShapeIndex
+    private static final Factory.ShapeIndex BUILT_IN = new GeneratedShapeIndex();
+
+    // Shapes registered at runtime
+    private static final Map<String, Supplier<Factory.Shape>> SHAPES = new LinkedHashMap<>();
+    private static final Map<String, Boolean> STATELESS = new LinkedHashMap<>();
+    private static volatile ShapeRegistry registry = new ShapeRegistry(SHAPES, STATELESS);
+
+    // Method to add a new shape type without changing the factory
+    public static synchronized void register(String shapeType, Supplier<Factory.Shape> supplier, boolean stateless) {
+        if (shapeType == null || supplier == null) {
+            throw new IllegalArgumentException("Factory.Shape type and supplier are required");
+        }
+        // Built-in shapes are looked up first, so a registration under the same name would never be used
+        if (BUILT_IN.contains(shapeType)) {
+            throw new IllegalArgumentException("Factory.Shape type '" + shapeType + "' is built in and can't be replaced");
+        }
+        String key = shapeType.toLowerCase(Locale.ROOT);
+        SHAPES.put(key, supplier);
+        STATELESS.put(key, stateless);
+        registry = new ShapeRegistry(SHAPES, STATELESS);
+    }
+
+	// Create a static method to return a new instance of the right shape
+    public static Factory.Shape getShape(String shapeType) {
         // Base case: If the shape type doesn't exist, return null
         if (shapeType == null) {
             return null;
         }
+        Factory.Shape shape = BUILT_IN.create(shapeType);
+        if (shape != null) {
+            return shape;
+        }
+        ShapeRegistry current = registry;
+        return current.create(find(current, shapeType));
+    }
 
-        switch (shapeType.toLowerCase()) {
-            case "circle":
-                return new Circle();
-            case "square":
-                return new Square();
-            case "rectangle":
-                return new Rectangle();
-            default:
-                throw new IllegalArgumentException("Unknown shape type provided: " + shapeType);
+    // Flyweight version: returns one shared instance for stateless shapes instead of a new one
+    public static Factory.Shape getSharedShape(String shapeType) {
+        if (shapeType == null) {
+            return null;
         }
+        Factory.Shape shape = BUILT_IN.shared(shapeType);
+        if (shape != null) {
+            return shape;
+        }
+        ShapeRegistry current = registry;
+        return current.shared(find(current, shapeType));
+    }
+
+    private static int find(ShapeRegistry current, String shapeType) {
+        int slot = current.find(shapeType);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unknown shape type provided: " + shapeType);
+        }
+        return slot;
     }
 }
 
 public class Factory {
-    public static void main(String[] args) {
+    // Define an interface for the shape. The shapes are nested in Factory so the generated
+    // GeneratedShapeIndex, which is in a file of its own, can reach them as Factory.Circle and so on.
+    interface Shape {
+        void draw(); // This is the public method that every concrete class must implement
+
+        // Draw into a buffered canvas instead of printing straight to System.out.
+        // Shapes that only know how to print keep printing, after what the canvas holds so far.
+        // Wrap them in a PrintingShape to have them draw into the canvas instead.
+        default void draw(Canvas canvas) {
+            canvas.drawPrinting(this);
+        }
+    }
+
+    // Create a concrete class that implements the Shape interface
+    @ShapeType("circle")
+    static class Circle implements Shape {
+        // Encode the output once instead of on every draw
+        private static final byte[] OUTPUT = "Drawing a ciricle\n".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void draw() {
+            System.out.println("Drawing a ciricle");
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            canvas.write(OUTPUT);
+        }
+    }
+
+    // Create a concrete class that implements the Shape interface
+    @ShapeType("triangle")
+    static class Triangle implements Shape {
+        // Encode the output once instead of on every draw
+        private static final byte[] OUTPUT = "Drawing a triangle\n".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void draw() {
+            System.out.println("Drawing a triangle");
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            canvas.write(OUTPUT);
+        }
+    }
+
+    // Create a concrete class that implements the Shape interface
+    @ShapeType("rectangle")
+    static class Rectangle implements Shape {
+        // Encode the output once instead of on every draw
+        private static final byte[] OUTPUT = "Drawing a rectangle\n".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void draw() {
+            System.out.println("Drawing a rectangle");
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            canvas.write(OUTPUT);
+        }
+    }
+
+    // Create a concrete class that implements the Shape interface
+    @ShapeType("square")
+    static class Square implements Shape {
+        // Encode the output once instead of on every draw
+        private static final byte[] OUTPUT = "Drawing a square\n".getBytes(StandardCharsets.UTF_8);
+
+        @Override
+        public void draw() {
+            System.out.println("Drawing a square");
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            canvas.write(OUTPUT);
+        }
+    }
+
+    // Define a lookup of shapes by name, implemented by the generated GeneratedShapeIndex
+    interface ShapeIndex {
+        boolean contains(String name);
+
+        Shape create(String name); // A new shape, or null for an unknown name
+
+        Shape shared(String name); // The shared instance of a stateless shape, or null for an unknown name
+    }
+
+    // ServiceLoader alternative to the generated index, only used by measureStartup.
+    // ServiceLoader can only create public classes with public constructors, hence the nested classes.
+    public interface ShapeProvider {
+        String name();
+
+        Shape create();
+    }
+
+    public static final class CircleProvider implements ShapeProvider {
+        @Override
+        public String name() {
+            return "circle";
+        }
+
+        @Override
+        public Shape create() {
+            return new Circle();
+        }
+    }
+
+    public static final class TriangleProvider implements ShapeProvider {
+        @Override
+        public String name() {
+            return "triangle";
+        }
+
+        @Override
+        public Shape create() {
+            return new Triangle();
+        }
+    }
+
+    public static final class RectangleProvider implements ShapeProvider {
+        @Override
+        public String name() {
+            return "rectangle";
+        }
+
+        @Override
+        public Shape create() {
+            return new Rectangle();
+        }
+    }
+
+    public static final class SquareProvider implements ShapeProvider {
+        @Override
+        public String name() {
+            return "square";
+        }
+
+        @Override
+        public Shape create() {
+            return new Square();
+        }
+    }
+
+    // Compare the first lookup (what a short-lived job pays) through the generated index and through
+    // ServiceLoader, then the cost of every later discovery once both are warm
+    private static void measureStartup(int rounds) throws IOException {
+        // ServiceLoader reads its providers from META-INF/services, so write one to a temporary class path entry
+        Path classPath = Files.createTempDirectory("shape-services");
+        Path services = classPath.resolve("META-INF/services/" + ShapeProvider.class.getName());
+        Files.createDirectories(services.getParent());
+        Files.write(services, List.of(CircleProvider.class.getName(), TriangleProvider.class.getName(),
+            RectangleProvider.class.getName(), SquareProvider.class.getName()));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[] { classPath.toUri().toURL() },
+                Factory.class.getClassLoader())) {
+            long start = System.nanoTime();
+            ShapeFactory.getShape("square");
+            long generatedFirst = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            discover(loader, "square");
+            long serviceFirst = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                ShapeFactory.getShape("square");
+            }
+            long generatedWarm = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                discover(loader, "square");
+            }
+            long serviceWarm = System.nanoTime() - start;
+
+            System.out.printf("%nFirst lookup: generated index %d us, ServiceLoader %d us%n",
+                generatedFirst / 1000, serviceFirst / 1000);
+            System.out.printf("Warm lookup (%d rounds): generated index %.0f ns, ServiceLoader discovery %.0f ns%n",
+                rounds, (double) generatedWarm / rounds, (double) serviceWarm / rounds);
+        }
+    }
+
+    // What a ServiceLoader-based factory does on startup: find the providers and pick one by name
+    private static Shape discover(ClassLoader loader, String shapeType) {
+        for (ShapeProvider provider : ServiceLoader.load(ShapeProvider.class, loader)) {
+            if (provider.name().equalsIgnoreCase(shapeType)) {
+                return provider.create();
+            }
+        }
+        throw new IllegalArgumentException("Unknown shape type provided: " + shapeType);
+    }
+
+    // Compare printing every shape against drawing them through a canvas
+    private static void measureDrawing(int count) throws IOException {
+        List<Shape> shapes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shapes.add(ShapeFactory.getSharedShape(i % 2 == 0 ? "circle" : "square"));
+        }
+
+        long printed;
+        long buffered;
+        long parallel;
+        try (PrintStream discarded = new PrintStream(OutputStream.nullOutputStream());
+                Canvas canvas = new Canvas(Channels.newChannel(OutputStream.nullOutputStream()), 1 << 20)) {
+            // draw() prints to System.out, so the benchmark points it nowhere while the loop runs
+            PrintStream stdout = System.out;
+            System.setOut(discarded);
+            long start = System.nanoTime();
+            try {
+                for (Shape shape : shapes) {
+                    shape.draw();
+                }
+            } finally {
+                System.setOut(stdout);
+            }
+            printed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            canvas.drawAll(shapes, 1, 0);
+            canvas.flush();
+            buffered = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            canvas.drawAll(shapes, Runtime.getRuntime().availableProcessors(), 64 * 1024);
+            canvas.flush();
+            parallel = System.nanoTime() - start;
+        }
+        System.out.printf("%nDrawing %d shapes to a discarding stream:%n", count);
+        System.out.printf("System.out.println: %d ms%n", printed / 1_000_000);
+        System.out.printf("Canvas:             %d ms%n", buffered / 1_000_000);
+        System.out.printf("Canvas (parallel):  %d ms%n", parallel / 1_000_000);
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean benchmark = args.length > 0 && args[0].equals("benchmark");
+        if (benchmark) {
+            measureStartup(10_000); // First, before anything else touches ShapeFactory
+        }
+
         // Use the factory to create new shapes
         Shape circle = ShapeFactory.getShape("circle");
         Shape square = ShapeFactory.getShape("square");
         Shape rectangle = ShapeFactory.getShape("rectangle");
+        Shape triangle = ShapeFactory.getShape("Triangle"); // Lookups ignore case
 
         // Draw the individual shapes
         circle.draw();
         square.draw();
         rectangle.draw();
+        triangle.draw();
+
+        // Stateless shapes can be shared instead of creating a new one every time
+        Shape sharedCircle = ShapeFactory.getSharedShape("circle");
+        System.out.println("Shared circles are the same instance: " + (sharedCircle == ShapeFactory.getSharedShape("CIRCLE")));
+
+        // Drawing code that prints to a PrintStream draws into the canvas through the PrintingShape adapter
+        ShapeFactory.register("hexagon", () -> new PrintingShape(out -> out.println("Drawing a hexagon")), true);
+        Shape hexagon = ShapeFactory.getShape("hexagon");
+
+        // Draw many shapes through one buffered canvas instead of one println each
+        try (Canvas canvas = Canvas.toStdout(8192)) {
+            canvas.drawAll(List.of(circle, square, rectangle, triangle, hexagon), 2, 2);
+        }
+
+        // Run with "benchmark" to compare the generated index against ServiceLoader, and println against the canvas
+        if (benchmark) {
+            measureDrawing(10_000_000);
+        }
     }
 }
\ No newline at end of file
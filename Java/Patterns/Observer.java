@@ -1,55 +1,2011 @@
+import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 // Create the observer interface that will get the notifications
 interface ObserverObject {
     void announce(String message);
 }
 
+// Create an optional observer interface for observers that can handle many messages at once
+interface BatchObserver extends ObserverObject {
+    void announceBatch(List<String> messages);
+}
+
 // Create the subject interface that will send the notifications
 interface Subject {
     void addObserver(ObserverObject observer);
     void removeObserver(ObserverObject observer);
     void notifyObservers(String message);
+
+    // Send many messages at once, observers that don't support batches get them one by one
+    default void notifyObservers(List<String> messages) {
+        for (String message : messages) {
+            notifyObservers(message);
+        }
+    }
+}
+
+// Define what happens when an observer's queue is full
+enum OverflowPolicy {
+    BLOCK,       // Wait for space, slowing down the publisher
+    DROP_OLDEST, // Throw away the oldest queued message
+    DROP_NEWEST  // Throw away the message being published
+}
+
+// Create a fixed-size latency histogram: 4 buckets per power of two, so about 25% precision
+final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(nanos, 0)));
+    }
+
+    // Get the latency at or below which the given fraction of samples fall (upper bucket edge)
+    public long percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= Math.max(target, 1)) {
+                return lowerBound(i + 1) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - 1) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 2);
+    }
+}
+
+// Create the delivery metrics for one observer
+final class ObserverMetrics {
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // Timing every call costs two clock reads, so only one in every N calls is timed
+    private final int sampleMask;
+
+    public ObserverMetrics(int latencySampleInterval) {
+        if (latencySampleInterval <= 0 || Integer.bitCount(latencySampleInterval) != 1) {
+            throw new IllegalArgumentException("Sample interval must be a power of two: " + latencySampleInterval);
+        }
+        this.sampleMask = latencySampleInterval - 1;
+    }
+
+    public void announce(ObserverObject observer, String message) {
+        long start = begin();
+        boolean succeeded = false;
+        try {
+            observer.announce(message);
+            succeeded = true;
+        } finally {
+            end(start, succeeded, 1);
+        }
+    }
+
+    public void announceBatch(BatchObserver observer, List<String> messages) {
+        long start = begin();
+        boolean succeeded = false;
+        try {
+            observer.announceBatch(messages);
+            succeeded = true;
+        } finally {
+            end(start, succeeded, messages.size());
+        }
+    }
+
+    private long begin() {
+        inFlight.increment();
+        return (ThreadLocalRandom.current().nextInt() & sampleMask) == 0 ? System.nanoTime() : 0;
+    }
+
+    private void end(long start, boolean succeeded, int messages) {
+        if (start != 0) {
+            latency.record(System.nanoTime() - start);
+        }
+        inFlight.decrement();
+        if (succeeded) {
+            delivered.add(messages);
+        } else {
+            failed.add(messages);
+        }
+    }
+
+    // Getters for the current values
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    public long getLatencyPercentile(double fraction) {
+        return latency.percentile(fraction);
+    }
+}
+
+// Create an immutable snapshot of one observer's metrics
+final class ObserverStats {
+    private final String observer;
+    private final long delivered;
+    private final long failed;
+    private final long inFlight;
+    private final int queueDepth;
+    private final long dropped;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+
+    ObserverStats(String observer, ObserverMetrics metrics, ObserverQueue queue) {
+        this.observer = observer;
+        this.delivered = metrics.getDelivered();
+        this.failed = metrics.getFailed();
+        this.inFlight = metrics.getInFlight();
+        this.queueDepth = queue == null ? 0 : queue.getQueueDepth();
+        this.dropped = queue == null ? 0 : queue.getDroppedCount();
+        this.p50Nanos = metrics.getLatencyPercentile(0.50);
+        this.p99Nanos = metrics.getLatencyPercentile(0.99);
+        this.p999Nanos = metrics.getLatencyPercentile(0.999);
+    }
+
+    public String getObserver() {
+        return observer;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+
+    @Override
+    public String toString() {
+        return observer + ": delivered=" + delivered + ", failed=" + failed + ", inFlight=" + inFlight
+            + ", queueDepth=" + queueDepth + ", dropped=" + dropped
+            + ", p50=" + p50Nanos + "ns, p99=" + p99Nanos + "ns, p99.9=" + p999Nanos + "ns";
+    }
+}
+
+// Create a bounded queue for one observer that is drained on an executor
+class ObserverQueue {
+    // Exactly one of these is set, weak observers can be collected while messages are queued
+    private final ObserverObject observer;
+    private final WeakReference<ObserverObject> weakObserver;
+    private final BlockingQueue<String> queue;
+    private final OverflowPolicy policy;
+    private final Executor executor;
+
+    // Only one drain task runs per observer so messages stay in order
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    // Messages whose observer threw, counted here whether or not metrics are enabled
+    private final AtomicLong failed = new AtomicLong();
+    // Set when metrics are enabled, null means deliveries are not measured
+    private volatile ObserverMetrics metrics;
+
+    public ObserverQueue(ObserverObject observer, int capacity, OverflowPolicy policy, Executor executor) {
+        this(observer, null, capacity, policy, executor);
+    }
+
+    public ObserverQueue(WeakReference<ObserverObject> weakObserver, int capacity, OverflowPolicy policy, Executor executor) {
+        this(null, weakObserver, capacity, policy, executor);
+    }
+
+    private ObserverQueue(ObserverObject observer, WeakReference<ObserverObject> weakObserver, int capacity,
+            OverflowPolicy policy, Executor executor) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.observer = observer;
+        this.weakObserver = weakObserver;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.executor = executor;
+    }
+
+    // Queue a message for the observer, applying the overflow policy if full
+    public void offer(String message) {
+        pending.incrementAndGet();
+        if (!enqueue(message)) {
+            dropped.incrementAndGet();
+            messageDone();
+            return;
+        }
+        schedule();
+    }
+
+    private boolean enqueue(String message) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    queue.put(message);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                        messageDone();
+                    }
+                }
+                return true;
+            default:
+                return queue.offer(message);
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            ObserverObject target = getObserver();
+            if (target instanceof BatchObserver) {
+                drainBatches((BatchObserver) target);
+            } else {
+                String message;
+                while ((message = queue.poll()) != null) {
+                    try {
+                        ObserverMetrics current = metrics;
+                        if (target == null) {
+                            dropped.incrementAndGet(); // The weak observer was collected
+                        } else if (current == null) {
+                            target.announce(message);
+                        } else {
+                            current.announce(target, message);
+                        }
+                    } catch (RuntimeException e) {
+                        // One failing message must not stop delivery of the ones behind it
+                        failed.incrementAndGet();
+                    } finally {
+                        messageDone();
+                    }
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // A message may have arrived after the last poll but before the flag was cleared
+        if (!queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    // Hand everything that is queued to a batch observer in one call
+    private void drainBatches(BatchObserver batchObserver) {
+        List<String> batch = new ArrayList<>();
+        while (queue.drainTo(batch) > 0) {
+            try {
+                ObserverMetrics current = metrics;
+                if (batch.size() == 1) {
+                    if (current == null) {
+                        batchObserver.announce(batch.get(0));
+                    } else {
+                        current.announce(batchObserver, batch.get(0));
+                    }
+                } else if (current == null) {
+                    batchObserver.announceBatch(Collections.unmodifiableList(batch));
+                } else {
+                    current.announceBatch(batchObserver, Collections.unmodifiableList(batch));
+                }
+            } catch (RuntimeException e) {
+                failed.addAndGet(batch.size());
+            } finally {
+                messagesDone(batch.size());
+            }
+            batch = new ArrayList<>();
+        }
+    }
+
+    private void messageDone() {
+        messagesDone(1);
+    }
+
+    private void messagesDone(int count) {
+        if (pending.addAndGet(-count) == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    // Wait until every queued message was delivered or dropped
+    public synchronized boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.get() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    // Getters for the queue state (the observer is null once a weak observer was collected)
+    public ObserverObject getObserver() {
+        return weakObserver != null ? weakObserver.get() : observer;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    void setMetrics(ObserverMetrics metrics) {
+        this.metrics = metrics;
+    }
+}
+
+// Create a weak handle to an observer that tells its notification system when it is collected
+final class WeakObserver extends WeakReference<ObserverObject> {
+    final NotificationSystem system;
+    // Set once the subscriber exists, so purging needs no search
+    Subscriber subscriber;
+
+    WeakObserver(ObserverObject observer, NotificationSystem system, ReferenceQueue<ObserverObject> collected) {
+        super(observer, collected);
+        this.system = system;
+    }
+}
+
+// Create a registered observer with its queue when delivery is async, shared by all of its subscriptions
+// so it gets a broadcast once and its metrics add up in one place
+final class Subscriber {
+    // Exactly one of these is set, depending on whether the observer was registered weakly
+    private final ObserverObject strongObserver;
+    final WeakObserver weakObserver;
+    final ObserverQueue queue;
+    // Identity hash of the observer, kept because a weak observer may already be gone when it is purged
+    final int identity;
+    // Only touched under the notification system's write lock
+    final List<Subscription> subscriptions = new ArrayList<>(1);
+    // Null when metrics are disabled, so the only cost is one null check
+    private volatile ObserverMetrics metrics;
+
+    Subscriber(ObserverObject observer, WeakObserver weakObserver, ObserverQueue queue, ObserverMetrics metrics) {
+        this.strongObserver = weakObserver == null ? observer : null;
+        this.weakObserver = weakObserver;
+        this.queue = queue;
+        this.identity = System.identityHashCode(observer);
+        if (weakObserver != null) {
+            weakObserver.subscriber = this;
+        }
+        setMetrics(metrics);
+    }
+
+    // Find the subscription for exactly this pattern or filter, an observer rarely has more than a few
+    Subscription find(String topicPattern, Predicate<String> topicFilter) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(topicPattern, topicFilter)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    ObserverMetrics metrics() {
+        return metrics;
+    }
+
+    // Switch metrics on or off, the queue (if any) uses the same counters
+    void setMetrics(ObserverMetrics metrics) {
+        this.metrics = metrics;
+        if (queue != null) {
+            queue.setMetrics(metrics);
+        }
+    }
+
+    // Get the observer, or null if it was registered weakly and has been collected
+    ObserverObject observer() {
+        return weakObserver != null ? weakObserver.get() : strongObserver;
+    }
+
+    // Name used to identify the observer in metrics
+    String name() {
+        ObserverObject observer = observer();
+        if (observer == null) {
+            return "collected@" + Integer.toHexString(System.identityHashCode(this));
+        }
+        return observer.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(observer));
+    }
+
+    void deliver(String message) {
+        ObserverObject observer = observer();
+        if (observer == null) {
+            return; // Collected, the purge thread will remove this subscriber soon
+        }
+        ObserverMetrics current = metrics;
+        if (queue != null) {
+            queue.offer(message);
+        } else if (current == null) {
+            observer.announce(message);
+        } else {
+            current.announce(observer, message);
+        }
+    }
+
+    void deliverBatch(List<String> messages) {
+        ObserverObject observer = observer();
+        if (observer == null) {
+            return;
+        }
+        ObserverMetrics current = metrics;
+        if (queue != null) {
+            // The queue hands queued messages to batch observers together when it drains
+            for (String message : messages) {
+                queue.offer(message);
+            }
+        } else if (observer instanceof BatchObserver) {
+            if (current == null) {
+                ((BatchObserver) observer).announceBatch(messages);
+            } else {
+                current.announceBatch((BatchObserver) observer, messages);
+            }
+        } else {
+            for (String message : messages) {
+                deliver(message);
+            }
+        }
+    }
+}
+
+// Create one topic subscription of an observer: a pattern like "door.front.*", a predicate, or neither for everything
+final class Subscription {
+    final Subscriber subscriber;
+    final String topicPattern;
+    final Predicate<String> topicFilter;
+    // The pattern split into segments once, null for predicate subscriptions
+    final String[] segments;
+
+    Subscription(Subscriber subscriber, String topicPattern, Predicate<String> topicFilter) {
+        this.subscriber = subscriber;
+        this.topicPattern = topicPattern;
+        this.topicFilter = topicFilter;
+        this.segments = topicFilter != null ? null
+            : TopicNode.parsePattern(topicPattern == null ? TopicNode.MULTI_WILDCARD : topicPattern);
+    }
+
+    // Check whether this is the subscription for exactly this pattern or filter
+    boolean matches(String topicPattern, Predicate<String> topicFilter) {
+        return Objects.equals(this.topicPattern, topicPattern) && this.topicFilter == topicFilter;
+    }
+
+    void deliver(String message) {
+        subscriber.deliver(message);
+    }
+}
+
+// Create an immutable list that can still grow without copying: the first version appended to
+// hands its spare capacity to the new version, any other append copies. Readers only look at the
+// first size items, so later writes into the shared array are invisible to them.
+// Appends must be serialized by the caller, the notification system does them under its write lock.
+final class GrowingArray<T> {
+    private static final GrowingArray<Object> EMPTY = new GrowingArray<>(new Object[0], 0);
+
+    private final Object[] items;
+    private final int size;
+    private boolean extended;
+
+    private GrowingArray(Object[] items, int size) {
+        this.items = items;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> GrowingArray<T> empty() {
+        return (GrowingArray<T>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        return (T) items[index];
+    }
+
+    GrowingArray<T> with(T item) {
+        if (size < items.length && !extended) {
+            extended = true;
+            items[size] = item;
+            return new GrowingArray<>(items, size + 1);
+        }
+        Object[] copy = Arrays.copyOf(items, Math.max(4, size * 2));
+        copy[size] = item;
+        return new GrowingArray<>(copy, size + 1);
+    }
+
+    // Return a copy without the given items, compared by identity
+    GrowingArray<T> without(Set<?> removed) {
+        Object[] kept = new Object[items.length];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (!removed.contains(items[i])) {
+                kept[count++] = items[i];
+            }
+        }
+        return count == size ? this : new GrowingArray<>(kept, count);
+    }
+}
+
+// Create a node in the topic trie, one level per dot-separated topic segment
+final class TopicNode {
+    static final String SINGLE_WILDCARD = "*"; // Matches exactly one segment
+    static final String MULTI_WILDCARD = "#";  // Matches any remaining segments, must be last
+
+    static final TopicNode EMPTY = new TopicNode(new String[0], new TopicNode[0], 0, GrowingArray.empty());
+
+    // Nodes are never changed once built: adding or removing a subscription copies only the nodes
+    // on its pattern's path and shares the rest of the trie with the previous version.
+    // Children live in an open-addressing table of two arrays, so copying a node with thousands of
+    // children is two array copies rather than rebuilding a map, and subscribers are appended
+    // without copying, so one pattern with many observers doesn't make every add linear.
+    private final String[] keys;
+    private final TopicNode[] nodes;
+    private final int childCount;
+    private final GrowingArray<Subscription> subscribers;
+
+    private TopicNode(String[] keys, TopicNode[] nodes, int childCount, GrowingArray<Subscription> subscribers) {
+        this.keys = keys;
+        this.nodes = nodes;
+        this.childCount = childCount;
+        this.subscribers = subscribers;
+    }
+
+    // Check that a subscription pattern is well formed
+    static String[] parsePattern(String pattern) {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new IllegalArgumentException("Topic pattern cannot be empty");
+        }
+        String[] segments = pattern.split("\\.", -1);
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i].isEmpty()) {
+                throw new IllegalArgumentException("Topic pattern has an empty segment: " + pattern);
+            }
+            if (segments[i].equals(MULTI_WILDCARD) && i != segments.length - 1) {
+                throw new IllegalArgumentException("'#' is only allowed as the last segment: " + pattern);
+            }
+        }
+        return segments;
+    }
+
+    // Split a published topic, which can't contain wildcards
+    static String[] parseTopic(String topic) {
+        String[] segments = topic.split("\\.", -1);
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.equals(SINGLE_WILDCARD) || segment.equals(MULTI_WILDCARD)) {
+                throw new IllegalArgumentException("Invalid topic: " + topic);
+            }
+        }
+        return segments;
+    }
+
+    // Return a trie that also has the subscription under the given pattern segments
+    TopicNode with(String[] segments, int depth, Subscription subscription) {
+        if (depth == segments.length) {
+            return new TopicNode(keys, nodes, childCount, subscribers.with(subscription));
+        }
+        TopicNode child = child(segments[depth]);
+        return withChild(segments[depth], (child == null ? EMPTY : child).with(segments, depth + 1, subscription));
+    }
+
+    // Return a trie without the subscriptions, dropping nodes that become empty. Each node on the
+    // removed patterns' paths is copied once, however many of the subscriptions end there.
+    TopicNode without(List<Subscription> removed, int depth) {
+        Set<Subscription> here = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<String, List<Subscription>> below = new HashMap<>();
+        for (Subscription subscription : removed) {
+            if (subscription.segments.length == depth) {
+                here.add(subscription);
+            } else {
+                below.computeIfAbsent(subscription.segments[depth], key -> new ArrayList<>()).add(subscription);
+            }
+        }
+        TopicNode updated = this;
+        if (!here.isEmpty()) {
+            GrowingArray<Subscription> kept = subscribers.without(here);
+            if (kept != subscribers) {
+                updated = new TopicNode(keys, nodes, childCount, kept);
+            }
+        }
+        for (Map.Entry<String, List<Subscription>> entry : below.entrySet()) {
+            TopicNode child = updated.child(entry.getKey());
+            if (child == null) {
+                continue;
+            }
+            TopicNode updatedChild = child.without(entry.getValue(), depth + 1);
+            if (updatedChild != child) {
+                updated = updatedChild.isEmpty() ? updated.withoutChild(entry.getKey())
+                    : updated.withChild(entry.getKey(), updatedChild);
+            }
+        }
+        return updated;
+    }
+
+    private boolean isEmpty() {
+        return childCount == 0 && subscribers.size() == 0;
+    }
+
+    private TopicNode child(String segment) {
+        if (childCount == 0) {
+            return null;
+        }
+        int mask = keys.length - 1;
+        for (int i = slot(segment, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(segment)) {
+                return nodes[i];
+            }
+        }
+        return null;
+    }
+
+    // Copy of this node with the child added or replaced, the table stays at most half full
+    private TopicNode withChild(String segment, TopicNode child) {
+        String[] newKeys;
+        TopicNode[] newNodes;
+        if ((childCount + 1) * 2 > keys.length) {
+            int capacity = Math.max(4, keys.length * 2);
+            newKeys = new String[capacity];
+            newNodes = new TopicNode[capacity];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    insert(newKeys, newNodes, keys[i], nodes[i]);
+                }
+            }
+        } else {
+            newKeys = keys.clone();
+            newNodes = nodes.clone();
+        }
+        boolean added = insert(newKeys, newNodes, segment, child);
+        return new TopicNode(newKeys, newNodes, added ? childCount + 1 : childCount, subscribers);
+    }
+
+    // Copy of this node without the child, moving later entries back so lookups still find them
+    private TopicNode withoutChild(String segment) {
+        String[] newKeys = keys.clone();
+        TopicNode[] newNodes = nodes.clone();
+        int mask = newKeys.length - 1;
+        int i = slot(segment, mask);
+        while (!newKeys[i].equals(segment)) {
+            i = (i + 1) & mask;
+        }
+        newKeys[i] = null;
+        newNodes[i] = null;
+        for (int j = (i + 1) & mask; newKeys[j] != null; j = (j + 1) & mask) {
+            int home = slot(newKeys[j], mask);
+            // Move the entry into the gap unless its home slot lies between the gap and where it is now
+            boolean between = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!between) {
+                newKeys[i] = newKeys[j];
+                newNodes[i] = newNodes[j];
+                newKeys[j] = null;
+                newNodes[j] = null;
+                i = j;
+            }
+        }
+        return new TopicNode(newKeys, newNodes, childCount - 1, subscribers);
+    }
+
+    // Put a key into the table, returns false if it replaced an existing entry
+    private static boolean insert(String[] keys, TopicNode[] nodes, String segment, TopicNode child) {
+        int mask = keys.length - 1;
+        int i = slot(segment, mask);
+        while (keys[i] != null) {
+            if (keys[i].equals(segment)) {
+                nodes[i] = child;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = segment;
+        nodes[i] = child;
+        return true;
+    }
+
+    private static int slot(String segment, int mask) {
+        int hash = segment.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    // Deliver to every subscriber whose pattern matches, only visiting matching branches
+    void route(String[] segments, int depth, String message) {
+        TopicNode rest = child(MULTI_WILDCARD);
+        if (rest != null) {
+            rest.deliverAll(message);
+        }
+        if (depth == segments.length) {
+            deliverAll(message);
+            return;
+        }
+        TopicNode exact = child(segments[depth]);
+        if (exact != null) {
+            exact.route(segments, depth + 1, message);
+        }
+        TopicNode single = child(SINGLE_WILDCARD);
+        if (single != null) {
+            single.route(segments, depth + 1, message);
+        }
+    }
+
+    private void deliverAll(String message) {
+        for (int i = 0; i < subscribers.size(); i++) {
+            subscribers.get(i).deliver(message);
+        }
+    }
+}
+
+// Create an immutable view of all subscriptions plus the routing index built from them
+final class SubscriptionSnapshot {
+    static final SubscriptionSnapshot EMPTY =
+        new SubscriptionSnapshot(GrowingArray.empty(), TopicNode.EMPTY, GrowingArray.empty(), 0);
+
+    // One entry per observer, broadcasts go to each of them once
+    final GrowingArray<Subscriber> subscribers;
+    final TopicNode topics;
+    // Predicates can't be indexed, so they are checked one by one
+    final GrowingArray<Subscription> filtered;
+    final int subscriptionCount;
+
+    private SubscriptionSnapshot(GrowingArray<Subscriber> subscribers, TopicNode topics,
+            GrowingArray<Subscription> filtered, int subscriptionCount) {
+        this.subscribers = subscribers;
+        this.topics = topics;
+        this.filtered = filtered;
+        this.subscriptionCount = subscriptionCount;
+    }
+
+    // Return a snapshot with the new subscribers and subscriptions added, only their own trie paths are copied
+    SubscriptionSnapshot withAdded(List<Subscriber> newSubscribers, List<Subscription> added) {
+        GrowingArray<Subscriber> updatedSubscribers = subscribers;
+        for (Subscriber subscriber : newSubscribers) {
+            updatedSubscribers = updatedSubscribers.with(subscriber);
+        }
+        TopicNode updatedTopics = topics;
+        GrowingArray<Subscription> predicates = filtered;
+        for (Subscription subscription : added) {
+            if (subscription.topicFilter != null) {
+                predicates = predicates.with(subscription);
+            } else {
+                updatedTopics = updatedTopics.with(subscription.segments, 0, subscription);
+            }
+        }
+        return new SubscriptionSnapshot(updatedSubscribers, updatedTopics, predicates,
+            subscriptionCount + added.size());
+    }
+
+    // Return a snapshot without the given subscribers and subscriptions
+    SubscriptionSnapshot withRemoved(List<Subscriber> gone, List<Subscription> removed) {
+        GrowingArray<Subscriber> keptSubscribers = subscribers;
+        if (!gone.isEmpty()) {
+            Set<Subscriber> goneSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            goneSet.addAll(gone);
+            keptSubscribers = subscribers.without(goneSet);
+        }
+        Set<Subscription> removedPredicates = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Subscription> removedPatterns = new ArrayList<>();
+        for (Subscription subscription : removed) {
+            if (subscription.topicFilter != null) {
+                removedPredicates.add(subscription);
+            } else {
+                removedPatterns.add(subscription);
+            }
+        }
+        GrowingArray<Subscription> predicates = removedPredicates.isEmpty() ? filtered : filtered.without(removedPredicates);
+        TopicNode updatedTopics = removedPatterns.isEmpty() ? topics : topics.without(removedPatterns, 0);
+        return new SubscriptionSnapshot(keptSubscribers, updatedTopics, predicates,
+            subscriptionCount - removed.size());
+    }
+
+    void route(String topic, String message) {
+        topics.route(TopicNode.parseTopic(topic), 0, message);
+        for (int i = 0; i < filtered.size(); i++) {
+            Subscription subscription = filtered.get(i);
+            if (subscription.topicFilter.test(topic)) {
+                subscription.deliver(message);
+            }
+        }
+    }
+}
+
+// Create the notification system that is a subject
+class NotificationSystem implements Subject {
+    // Store the observers in an immutable snapshot that is swapped atomically on every change,
+    // so publishers iterate and route through it without locking
+    private final AtomicReference<SubscriptionSnapshot> subscriptions = new AtomicReference<>(SubscriptionSnapshot.EMPTY);
+
+    // Writers take this lock, so each change builds one snapshot instead of retrying against each other
+    private final Object writeLock = new Object();
+    // Find an observer's subscriber by identity hash, a weak observer can't be a map key itself
+    private final Map<Integer, List<Subscriber>> subscribersByIdentity = new HashMap<>();
+
+    // In async mode every observer gets its own queue instead of a direct call
+    private final Executor executor;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+
+    // Zero means metrics are disabled, otherwise one in this many deliveries is timed
+    private volatile int latencySampleInterval;
+
+    // Optional log that broadcast messages are written to before delivery
+    private volatile NotificationOutbox outbox;
+
+    // Define the JMX view of the metrics, keyed by observer name (JMX requires a public interface)
+    public interface MetricsMXBean {
+        Map<String, Long> getDeliveredCounts();
+        Map<String, Long> getFailureCounts();
+        Map<String, Long> getInFlightCounts();
+        Map<String, Long> getQueueDepths();
+        Map<String, Long> getP99LatencyNanos();
+    }
+
+    // Create a system that announces on the publisher's thread
+    public NotificationSystem() {
+        this.executor = null;
+        this.queueCapacity = 0;
+        this.overflowPolicy = null;
+    }
+
+    // Create a system that announces on the executor, one bounded queue per observer
+    public NotificationSystem(Executor executor, int queueCapacity, OverflowPolicy overflowPolicy) {
+        if (executor == null || overflowPolicy == null) {
+            throw new IllegalArgumentException("Executor and overflow policy are required for async delivery");
+        }
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public boolean isAsync() {
+        return executor != null;
+    }
+
+    // Methods to add an observer to notify
+    @Override
+    public void addObserver(ObserverObject observer) {
+        addObservers(observer);
+    }
+
+    // All observers in the batch become visible to publishers at the same time
+    public void addObservers(ObserverObject... observersList) {
+        register(observersList, null, null);
+    }
+
+    // Add an observer that only gets messages published to topics matching the pattern,
+    // for example "door.front.*" (one segment) or "door.#" (any remaining segments).
+    // An observer can subscribe to several patterns and gets a message once for every pattern it matches.
+    public void addObserver(ObserverObject observer, String topicPattern) {
+        TopicNode.parsePattern(topicPattern);
+        register(new ObserverObject[] { observer }, topicPattern, null);
+    }
+
+    // Add an observer that only gets messages whose topic passes the predicate
+    public void addObserver(ObserverObject observer, Predicate<String> topicFilter) {
+        if (topicFilter == null) {
+            throw new IllegalArgumentException("Topic filter cannot be null");
+        }
+        register(new ObserverObject[] { observer }, null, topicFilter);
+    }
+
+    // Add an observer without keeping it alive: once nothing else references it,
+    // it is garbage collected and its subscription is removed in the background
+    public void addWeakObserver(ObserverObject observer) {
+        registerWeak(observer, null);
+    }
+
+    public void addWeakObserver(ObserverObject observer, String topicPattern) {
+        TopicNode.parsePattern(topicPattern);
+        registerWeak(observer, topicPattern);
+    }
+
+    private void registerWeak(ObserverObject observer, String topicPattern) {
+        register(new ObserverObject[] { observer }, topicPattern, null, true);
+    }
+
+    private void register(ObserverObject[] observersList, String topicPattern, Predicate<String> topicFilter) {
+        register(observersList, topicPattern, topicFilter, false);
+    }
+
+    private void register(ObserverObject[] observersList, String topicPattern, Predicate<String> topicFilter,
+            boolean weak) {
+        for (ObserverObject observer : observersList) {
+            if (observer == null) {
+                throw new IllegalArgumentException("Observer cannot be null");
+            }
+        }
+        synchronized (writeLock) {
+            List<Subscriber> newSubscribers = new ArrayList<>();
+            List<Subscription> added = new ArrayList<>(observersList.length);
+            for (ObserverObject observer : observersList) {
+                // An observer can have several subscriptions, but only one per pattern or filter,
+                // and all of them share one subscriber (it keeps the strength of its first registration)
+                Subscriber subscriber = find(observer);
+                if (subscriber == null) {
+                    subscriber = subscriber(observer, weak);
+                    subscribersByIdentity.computeIfAbsent(subscriber.identity, key -> new ArrayList<>(1)).add(subscriber);
+                    newSubscribers.add(subscriber);
+                } else if (subscriber.find(topicPattern, topicFilter) != null) {
+                    continue;
+                }
+                Subscription subscription = new Subscription(subscriber, topicPattern, topicFilter);
+                subscriber.subscriptions.add(subscription);
+                added.add(subscription);
+            }
+            if (!added.isEmpty()) {
+                subscriptions.set(subscriptions.get().withAdded(newSubscribers, added));
+            }
+        }
+    }
+
+    // Method to remove observer from every topic (already queued messages are still delivered)
+    @Override
+    public void removeObserver(ObserverObject observer) {
+        synchronized (writeLock) {
+            Subscriber subscriber = find(observer);
+            if (subscriber != null) {
+                remove(new ArrayList<>(subscriber.subscriptions));
+            }
+        }
+    }
+
+    // Remove only the observer's subscription to this pattern
+    public void removeObserver(ObserverObject observer, String topicPattern) {
+        synchronized (writeLock) {
+            Subscriber subscriber = find(observer);
+            Subscription subscription = subscriber == null ? null : subscriber.find(topicPattern, null);
+            if (subscription != null) {
+                remove(Collections.singletonList(subscription));
+            }
+        }
+    }
+
+    // Remove subscriptions, and the subscribers that are left without any, holding the write lock
+    private void remove(List<Subscription> removed) {
+        if (removed.isEmpty()) {
+            return;
+        }
+        List<Subscriber> gone = new ArrayList<>();
+        for (Subscription subscription : removed) {
+            Subscriber subscriber = subscription.subscriber;
+            subscriber.subscriptions.remove(subscription);
+            if (subscriber.subscriptions.isEmpty()) {
+                gone.add(subscriber);
+                List<Subscriber> sameIdentity = subscribersByIdentity.get(subscriber.identity);
+                sameIdentity.remove(subscriber);
+                if (sameIdentity.isEmpty()) {
+                    subscribersByIdentity.remove(subscriber.identity);
+                }
+            }
+        }
+        subscriptions.set(subscriptions.get().withRemoved(gone, removed));
+    }
+
+    // Find the observer's subscriber, holding the write lock
+    private Subscriber find(ObserverObject observer) {
+        List<Subscriber> sameIdentity = subscribersByIdentity.get(System.identityHashCode(observer));
+        if (sameIdentity != null) {
+            for (Subscriber subscriber : sameIdentity) {
+                if (subscriber.observer() == observer) {
+                    return subscriber;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Write every broadcast message to a durable outbox so durable observers can replay what they missed
+    public void setOutbox(NotificationOutbox outbox) {
+        this.outbox = outbox;
+    }
+
+    // Add an observer that is identified by name across restarts and replays missed messages on connect
+    public void addDurableObserver(String name, ObserverObject observer) {
+        NotificationOutbox current = outbox;
+        if (current == null) {
+            throw new IllegalStateException("Durable observers need an outbox, use setOutbox() first");
+        }
+        current.connect(name, observer);
+    }
+
+    public void removeDurableObserver(String name) {
+        NotificationOutbox current = outbox;
+        if (current != null) {
+            current.disconnect(name);
+        }
+    }
+
+    // Method to notify all observers using a message (a broadcast, topics are ignored,
+    // so an observer with several subscriptions still gets it once)
+    @Override
+    public void notifyObservers(String message) {
+        NotificationOutbox current = outbox;
+        if (current != null) {
+            current.dispatch(current.append(message), message);
+        }
+        GrowingArray<Subscriber> subscribers = subscriptions.get().subscribers;
+        for (int i = 0; i < subscribers.size(); i++) {
+            subscribers.get(i).deliver(message);
+        }
+    }
+
+    // Method to notify only the observers subscribed to a matching topic
+    public void notifyObservers(String topic, String message) {
+        subscriptions.get().route(topic, message);
+    }
+
+    // Method to notify all observers with many messages, batch observers get a single call
+    @Override
+    public void notifyObservers(List<String> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        NotificationOutbox current = outbox;
+        if (current != null) {
+            for (String message : messages) {
+                current.dispatch(current.append(message), message);
+            }
+        }
+        List<String> batch = Collections.unmodifiableList(new ArrayList<>(messages));
+        GrowingArray<Subscriber> subscribers = subscriptions.get().subscribers;
+        for (int i = 0; i < subscribers.size(); i++) {
+            subscribers.get(i).deliverBatch(batch);
+        }
+    }
+
+    // Create a ring buffer publisher that delivers to the currently registered observers
+    public NotificationRingBuffer toRingBuffer(int bufferSize, WaitStrategy waitStrategy) {
+        NotificationRingBuffer ringBuffer = new NotificationRingBuffer(bufferSize, waitStrategy);
+        GrowingArray<Subscriber> subscribers = subscriptions.get().subscribers;
+        for (int i = 0; i < subscribers.size(); i++) {
+            ObserverObject observer = subscribers.get(i).observer();
+            if (observer != null) {
+                ringBuffer.addObserver(observer); // The ring buffer keeps its consumers alive
+            }
+        }
+        return ringBuffer;
+    }
+
+    // Number of subscriptions currently registered (an observer with two topic patterns counts twice)
+    public int getObserverCount() {
+        return subscriptions.get().subscriptionCount;
+    }
+
+    // Wait until all async messages were delivered (always true in sync mode)
+    public boolean awaitDelivery(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        GrowingArray<Subscriber> subscribers = subscriptions.get().subscribers;
+        for (int i = 0; i < subscribers.size(); i++) {
+            ObserverQueue queue = subscribers.get(i).queue;
+            if (queue != null && !queue.awaitDelivery(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Start tracking per-observer delivery counts, failures and latency
+    public void enableMetrics(int latencySampleInterval) {
+        new ObserverMetrics(latencySampleInterval); // Validates the interval
+        this.latencySampleInterval = latencySampleInterval;
+        replaceMetrics(true);
+    }
+
+    // Stop tracking metrics, deliveries go straight to the observers again
+    public void disableMetrics() {
+        this.latencySampleInterval = 0;
+        replaceMetrics(false);
+    }
+
+    public boolean isMetricsEnabled() {
+        return latencySampleInterval != 0;
+    }
+
+    // Take a snapshot of every observer's metrics (empty when metrics are disabled),
+    // one entry per observer however many topics it subscribed to
+    public List<ObserverStats> getMetrics() {
+        List<ObserverStats> stats = new ArrayList<>();
+        GrowingArray<Subscriber> subscribers = subscriptions.get().subscribers;
+        for (int i = 0; i < subscribers.size(); i++) {
+            Subscriber subscriber = subscribers.get(i);
+            ObserverMetrics metrics = subscriber.metrics();
+            if (metrics != null) {
+                stats.add(new ObserverStats(subscriber.name(), metrics, subscriber.queue));
+            }
+        }
+        return stats;
+    }
+
+    // Register the metrics with the platform MBean server so they show up in JMX tools
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("NotificationSystem:type=Metrics,name=" + ObjectName.quote(name));
+            MetricsMXBean bean = new MetricsMXBean() {
+                @Override
+                public Map<String, Long> getDeliveredCounts() {
+                    return collect(ObserverStats::getDelivered);
+                }
+
+                @Override
+                public Map<String, Long> getFailureCounts() {
+                    return collect(ObserverStats::getFailed);
+                }
+
+                @Override
+                public Map<String, Long> getInFlightCounts() {
+                    return collect(ObserverStats::getInFlight);
+                }
+
+                @Override
+                public Map<String, Long> getQueueDepths() {
+                    return collect(stats -> (long) stats.getQueueDepth());
+                }
+
+                @Override
+                public Map<String, Long> getP99LatencyNanos() {
+                    return collect(ObserverStats::getP99Nanos);
+                }
+            };
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(new StandardMBean(bean, MetricsMXBean.class, true), objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register notification metrics: " + name, e);
+        }
+    }
+
+    private Map<String, Long> collect(ToLongFunction<ObserverStats> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (ObserverStats stats : getMetrics()) {
+            // Names end in an identity hash, which two observers can share, so never overwrite an entry
+            String name = stats.getObserver();
+            for (int i = 2; values.containsKey(name); i++) {
+                name = stats.getObserver() + "#" + i;
+            }
+            values.put(name, value.applyAsLong(stats));
+        }
+        return values;
+    }
+
+    // Subscribers read their metrics on every delivery, so switching them needs no new snapshot
+    private void replaceMetrics(boolean enabled) {
+        synchronized (writeLock) {
+            GrowingArray<Subscriber> subscribers = subscriptions.get().subscribers;
+            for (int i = 0; i < subscribers.size(); i++) {
+                Subscriber subscriber = subscribers.get(i);
+                // Keep existing counters when metrics are already on
+                if (!enabled) {
+                    subscriber.setMetrics(null);
+                } else if (subscriber.metrics() == null) {
+                    subscriber.setMetrics(newMetrics());
+                }
+            }
+        }
+    }
+
+    private ObserverMetrics newMetrics() {
+        int interval = latencySampleInterval;
+        return interval == 0 ? null : new ObserverMetrics(interval);
+    }
+
+    private Subscriber subscriber(ObserverObject observer, boolean weak) {
+        if (!weak) {
+            ObserverQueue queue = isAsync() ? new ObserverQueue(observer, queueCapacity, overflowPolicy, executor) : null;
+            return new Subscriber(observer, null, queue, newMetrics());
+        }
+        WeakObserver weakObserver = new WeakObserver(observer, this, WeakObserverPurger.COLLECTED);
+        ObserverQueue queue = isAsync() ? new ObserverQueue(weakObserver, queueCapacity, overflowPolicy, executor) : null;
+        return new Subscriber(null, weakObserver, queue, newMetrics());
+    }
+
+    // Remove the subscriptions of weak observers that were garbage collected, all in one snapshot
+    void purge(Set<WeakObserver> collected) {
+        synchronized (writeLock) {
+            List<Subscription> removed = new ArrayList<>();
+            for (WeakObserver weakObserver : collected) {
+                if (weakObserver.subscriber != null) {
+                    removed.addAll(weakObserver.subscriber.subscriptions);
+                }
+            }
+            remove(removed);
+        }
+    }
 }
 
-// Create the notification system that is a subject
-class NotificationSystem implements Subject {
-    // Store the observers in a set for O(1) add, search, and remove
-    private final Set<ObserverObject> observers = new HashSet<>();
+// Create a background thread that removes weak observers once they are garbage collected
+final class WeakObserverPurger implements Runnable {
+    static final ReferenceQueue<ObserverObject> COLLECTED = new ReferenceQueue<>();
+
+    static {
+        Thread thread = new Thread(new WeakObserverPurger(), "weak-observer-purger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private WeakObserverPurger() {
+    }
 
-    // Methods to add an observer to notify
     @Override
-    public void addObserver(ObserverObject observer) {
-        observers.add(observer);
+    public void run() {
+        while (true) {
+            try {
+                // Wait for one collected observer, then take every other one that is ready
+                // so each notification system is rebuilt once per batch instead of once per observer
+                Map<NotificationSystem, Set<WeakObserver>> batch = new HashMap<>();
+                WeakObserver ref = (WeakObserver) COLLECTED.remove();
+                while (ref != null) {
+                    batch.computeIfAbsent(ref.system, key -> new HashSet<>()).add(ref);
+                    ref = (WeakObserver) COLLECTED.poll();
+                }
+                for (Map.Entry<NotificationSystem, Set<WeakObserver>> entry : batch.entrySet()) {
+                    entry.getKey().purge(entry.getValue());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
     }
+}
 
-    public void addObservers(ObserverObject... observersList) {
-        observers.addAll(Arrays.asList(observersList));
+// Create one memory-mapped file of the outbox log, holding messages from a base offset onwards
+final class OutboxSegment {
+    final long baseOffset;
+    final Path path;
+    final MappedByteBuffer buffer;
+    // Position of every record in this segment, indexed by offset - baseOffset
+    private int[] positions = new int[1024];
+    private int count;
+    private int writePosition;
+
+    OutboxSegment(Path path, long baseOffset, int capacity) throws IOException {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        // The mapping stays valid after the channel is closed, so no file handle is kept per segment
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        // Records are [length][UTF-8 bytes], the first zero length marks the end of the log
+        while (writePosition + Integer.BYTES <= capacity) {
+            int length = buffer.getInt(writePosition);
+            if (length <= 0) {
+                break;
+            }
+            addPosition(writePosition);
+            writePosition += Integer.BYTES + length;
+        }
+    }
+
+    boolean hasRoom(int length) {
+        return writePosition + Integer.BYTES + length + Integer.BYTES <= buffer.capacity();
+    }
+
+    void append(byte[] bytes) {
+        buffer.put(writePosition + Integer.BYTES, bytes);
+        buffer.putInt(writePosition, bytes.length); // Length last, so a torn write reads as end of log
+        addPosition(writePosition);
+        writePosition += Integer.BYTES + bytes.length;
+    }
+
+    String read(long offset) {
+        int position = positions[(int) (offset - baseOffset)];
+        byte[] bytes = new byte[buffer.getInt(position)];
+        buffer.get(position + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    long endOffset() {
+        return baseOffset + count;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    private void addPosition(int position) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        positions[count++] = position;
+    }
+}
+
+// Create an observer that the outbox delivers to by offset, so it can catch up after a restart
+final class DurableObserver {
+    final String name;
+    private final ObserverObject observer;
+    private final NotificationOutbox outbox;
+    private long nextOffset;
+
+    DurableObserver(String name, ObserverObject observer, NotificationOutbox outbox, long nextOffset) {
+        this.name = name;
+        this.observer = observer;
+        this.outbox = outbox;
+        this.nextOffset = nextOffset;
+    }
+
+    // Deliver in offset order: skip what was already seen and read any gap back from the log
+    synchronized void deliver(long offset, String message) {
+        if (offset < nextOffset) {
+            return;
+        }
+        catchUp(offset);
+        observer.announce(message);
+        nextOffset = offset + 1;
+        outbox.acknowledge(name, offset);
+    }
+
+    // Replay every logged message from the last acknowledged one up to (not including) the given offset
+    synchronized void catchUp(long endOffset) {
+        while (nextOffset < endOffset) {
+            observer.announce(outbox.read(nextOffset));
+            outbox.acknowledge(name, nextOffset);
+            nextOffset++;
+        }
+    }
+}
+
+// Create an append-only, segmented and memory-mapped log of messages with per-observer acknowledgements
+class NotificationOutbox implements AutoCloseable {
+    private static final String ACKS_FILE = "acks.properties";
+
+    private final Path directory;
+    private final int segmentCapacity;
+    private final boolean waitForFsync;
+    private final List<OutboxSegment> segments = new ArrayList<>();
+    private final List<DurableObserver> durableObservers = new CopyOnWriteArrayList<>();
+    private final Properties acks = new Properties();
+
+    // Group commit state, guarded by this: everything below syncedOffset is on disk
+    private long syncedOffset;
+    private boolean acksDirty;
+    private final List<OutboxSegment> dirtySegments = new ArrayList<>();
+    private boolean open = true;
+    private final Thread flusher;
+
+    public NotificationOutbox(Path directory, int segmentCapacity, boolean waitForFsync) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentCapacity = segmentCapacity;
+        this.waitForFsync = waitForFsync;
+        loadSegments();
+        loadAcks();
+        this.syncedOffset = endOffset();
+        this.flusher = new Thread(this::flushLoop, "outbox-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // Append a message and return its offset, optionally waiting until it is fsynced
+    public long append(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        long offset;
+        synchronized (this) {
+            ensureOpen();
+            OutboxSegment segment = segments.get(segments.size() - 1);
+            if (!segment.hasRoom(bytes.length)) {
+                segment = rollSegment(bytes.length);
+            }
+            offset = segment.endOffset();
+            segment.append(bytes);
+            if (!dirtySegments.contains(segment)) {
+                dirtySegments.add(segment);
+            }
+            notifyAll(); // Wake the flusher
+        }
+        if (waitForFsync) {
+            awaitSynced(offset + 1);
+        }
+        return offset;
+    }
+
+    // Deliver a logged message to every connected durable observer
+    void dispatch(long offset, String message) {
+        for (DurableObserver durable : durableObservers) {
+            durable.deliver(offset, message);
+        }
+    }
+
+    // Connect an observer by name, replaying everything it missed since its last acknowledgement
+    public void connect(String name, ObserverObject observer) {
+        DurableObserver durable;
+        synchronized (this) {
+            for (DurableObserver connected : durableObservers) {
+                if (connected.name.equals(name)) {
+                    throw new IllegalStateException("Durable observer '" + name + "' is already connected");
+                }
+            }
+            long next = Long.parseLong(acks.getProperty(name, "-1")) + 1;
+            if (next == 0) {
+                next = endOffset(); // First connection starts from now, not from the beginning
+                // Record the starting point so retention keeps everything this observer hasn't seen yet
+                acknowledge(name, next - 1);
+            }
+            durable = new DurableObserver(name, observer, this, next);
+            durableObservers.add(durable);
+        }
+        durable.catchUp(endOffset());
+    }
+
+    public void disconnect(String name) {
+        durableObservers.removeIf(durable -> durable.name.equals(name));
+    }
+
+    public synchronized String read(long offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).baseOffset <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        OutboxSegment segment = segments.get(low);
+        if (offset < segment.baseOffset || offset >= segment.endOffset()) {
+            throw new IndexOutOfBoundsException("No message at offset " + offset);
+        }
+        return segment.read(offset);
+    }
+
+    synchronized void acknowledge(String name, long offset) {
+        acks.setProperty(name, Long.toString(offset));
+        acksDirty = true;
+    }
+
+    public synchronized long endOffset() {
+        return segments.get(segments.size() - 1).endOffset();
+    }
+
+    // Wait until everything appended before the given offset is on disk
+    public synchronized void awaitSynced(long offset) {
+        while (syncedOffset < offset && open) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
     }
 
-    // Method to remove observer 
     @Override
-    public void removeObserver(ObserverObject observer) {
-        observers.remove(observer);
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (OutboxSegment segment : segments) {
+                segment.force();
+            }
+            saveAcks();
+        }
+    }
+
+    // Group commit: one fsync covers every append that arrived while the previous one ran
+    private void flushLoop() {
+        while (true) {
+            long target;
+            List<OutboxSegment> toForce;
+            boolean saveAcks;
+            synchronized (this) {
+                while (open && dirtySegments.isEmpty() && !acksDirty) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!open) {
+                    return;
+                }
+                target = endOffset();
+                toForce = new ArrayList<>(dirtySegments);
+                dirtySegments.clear();
+                saveAcks = acksDirty;
+                acksDirty = false;
+            }
+            for (OutboxSegment segment : toForce) {
+                segment.force();
+            }
+            List<OutboxSegment> acknowledged = Collections.emptyList();
+            synchronized (this) {
+                if (saveAcks) {
+                    saveAcks();
+                    acknowledged = removeAcknowledgedSegments();
+                }
+                syncedOffset = Math.max(syncedOffset, target);
+                notifyAll();
+            }
+            for (OutboxSegment segment : acknowledged) {
+                try {
+                    Files.deleteIfExists(segment.path);
+                } catch (IOException e) {
+                    // Left behind, the next start-up loads it and it is removed again once acknowledged
+                }
+            }
+        }
+    }
+
+    // Retention: take out the sealed segments that every known observer has acknowledged completely.
+    // Observers are known by their saved acknowledgement, so disconnected ones still keep their backlog.
+    private List<OutboxSegment> removeAcknowledgedSegments() {
+        long needed = endOffset();
+        for (String name : acks.stringPropertyNames()) {
+            needed = Math.min(needed, Long.parseLong(acks.getProperty(name)) + 1);
+        }
+        List<OutboxSegment> removed = new ArrayList<>();
+        // The last segment is still being written, so it always stays
+        while (segments.size() > 1 && segments.get(0).endOffset() <= needed) {
+            removed.add(segments.remove(0));
+        }
+        return removed;
+    }
+
+    private OutboxSegment rollSegment(int length) {
+        if (Integer.BYTES * 2 + length > segmentCapacity) {
+            throw new IllegalArgumentException("Message is larger than a segment: " + length + " bytes");
+        }
+        try {
+            OutboxSegment segment = openSegment(endOffset());
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create outbox segment", e);
+        }
+    }
+
+    private OutboxSegment openSegment(long baseOffset) throws IOException {
+        Path path = directory.resolve(String.format("%020d.log", baseOffset));
+        return new OutboxSegment(path, baseOffset, segmentCapacity);
+    }
+
+    private void loadSegments() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths); // Zero-padded names sort by base offset
+        for (Path path : paths) {
+            String fileName = path.getFileName().toString();
+            segments.add(new OutboxSegment(path, Long.parseLong(fileName.substring(0, fileName.length() - 4)), segmentCapacity));
+        }
+        if (segments.isEmpty()) {
+            segments.add(openSegment(0));
+        }
+    }
+
+    private void loadAcks() throws IOException {
+        Path path = directory.resolve(ACKS_FILE);
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                acks.load(in);
+            }
+        }
+    }
+
+    // Write the acknowledgements to a temporary file and move it into place so a crash never leaves half a file
+    private void saveAcks() {
+        Path temporary = directory.resolve(ACKS_FILE + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporary)) {
+                acks.store(out, null);
+            }
+            Files.move(temporary, directory.resolve(ACKS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not save outbox acknowledgements", e);
+        }
+    }
+
+    private void ensureOpen() {
+        if (!open) {
+            throw new IllegalStateException("Outbox is closed");
+        }
+    }
+}
+
+// Define how ring buffer producers and consumers wait when they can't make progress
+enum WaitStrategy {
+    BUSY_SPIN {
+        @Override
+        void idle() {
+            Thread.onSpinWait();
+        }
+    },
+    YIELD {
+        @Override
+        void idle() {
+            Thread.yield();
+        }
+    },
+    PARK {
+        @Override
+        void idle() {
+            LockSupport.parkNanos(1_000);
+        }
+    };
+
+    abstract void idle();
+}
+
+// Create a reusable slot in the ring buffer that a publisher fills in
+final class MessageSlot {
+    String message;
+}
+
+// Create a preallocated ring buffer publisher where every observer reads with its own cursor
+class NotificationRingBuffer implements AutoCloseable {
+    private final MessageSlot[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // Next sequence to hand out to a publisher, shared by all producers
+    private final AtomicLong nextSequence = new AtomicLong();
+    // Sequence last published into each slot, so consumers know when a slot is ready
+    private final AtomicLongArray published;
+
+    private final List<RingConsumer> consumers = new ArrayList<>();
+    private RingConsumer[] gating = new RingConsumer[0];
+    // Cached lowest consumer cursor so producers rarely have to scan every consumer
+    private volatile long gatingCache = -1;
+    private volatile boolean running;
+
+    public NotificationRingBuffer(int bufferSize, WaitStrategy waitStrategy) {
+        if (bufferSize <= 0 || Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("Buffer size must be a power of two: " + bufferSize);
+        }
+        this.slots = new MessageSlot[bufferSize];
+        for (int i = 0; i < bufferSize; i++) {
+            slots[i] = new MessageSlot();
+        }
+        this.mask = bufferSize - 1;
+        this.waitStrategy = waitStrategy;
+        this.published = new AtomicLongArray(bufferSize);
+        for (int i = 0; i < bufferSize; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    // Observers must be added before start() because every consumer gates the producers
+    public synchronized void addObserver(ObserverObject observer) {
+        if (gating.length > 0 || running) {
+            throw new IllegalStateException("Observers must be added before the ring buffer is started");
+        }
+        consumers.add(new RingConsumer(observer));
+    }
+
+    // Start one consumer thread per observer
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        gating = consumers.toArray(new RingConsumer[0]);
+        for (RingConsumer consumer : gating) {
+            Thread thread = new Thread(consumer, "ring-consumer-" + consumer.observer.getClass().getSimpleName());
+            thread.setDaemon(true);
+            consumer.thread = thread;
+            thread.start();
+        }
+    }
+
+    // Claim the next sequence, waiting while the slowest consumer is a full lap behind
+    public long next() {
+        long sequence = nextSequence.getAndIncrement();
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > gatingCache) {
+            long minimum;
+            while (wrapPoint > (minimum = minimumConsumerSequence(sequence))) {
+                waitStrategy.idle();
+            }
+            gatingCache = minimum;
+        }
+        return sequence;
+    }
+
+    // Get the slot for a claimed sequence so the publisher can fill it in
+    public MessageSlot get(long sequence) {
+        return slots[(int) sequence & mask];
+    }
+
+    // Make a filled slot visible to consumers
+    public void publish(long sequence) {
+        published.lazySet((int) sequence & mask, sequence);
     }
 
-    // Method to notify all observers using a message
+    // Claim, fill and publish a message in one call
+    public void publish(String message) {
+        if (!running) {
+            throw new IllegalStateException("Ring buffer is not running, call start() first");
+        }
+        long sequence = next();
+        get(sequence).message = message;
+        publish(sequence);
+    }
+
+    // Wait for consumers to read everything published so far, then stop them
     @Override
-    public void notifyObservers(String message) {
-        for (ObserverObject observer : observers) {
-            observer.announce(message);
+    public void close() {
+        RingConsumer[] current;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            current = gating;
+        }
+        try {
+            for (RingConsumer consumer : current) {
+                consumer.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Number of messages whose observer threw, over all consumers
+    public synchronized long getFailedCount() {
+        long failed = 0;
+        for (RingConsumer consumer : consumers) {
+            failed += consumer.failed;
+        }
+        return failed;
+    }
+
+    private long minimumConsumerSequence(long defaultValue) {
+        long minimum = defaultValue;
+        for (RingConsumer consumer : gating) {
+            minimum = Math.min(minimum, consumer.sequence);
+        }
+        return minimum;
+    }
+
+    // Create a consumer that tracks its own cursor into the ring buffer
+    private final class RingConsumer implements Runnable {
+        private final ObserverObject observer;
+        private volatile long sequence = -1;
+        // Only written by the consumer thread
+        private volatile long failed;
+        private Thread thread;
+
+        RingConsumer(ObserverObject observer) {
+            this.observer = observer;
+        }
+
+        @Override
+        public void run() {
+            long next = sequence + 1;
+            while (true) {
+                int index = (int) next & mask;
+                if (published.get(index) == next) {
+                    try {
+                        observer.announce(slots[index].message);
+                    } catch (RuntimeException e) {
+                        // A failing observer must not stop its cursor, or it would block every publisher
+                        failed++;
+                    } finally {
+                        sequence = next++;
+                    }
+                } else if (!running && next >= nextSequence.get()) {
+                    return; // Stopped and every claimed message was read
+                } else {
+                    waitStrategy.idle();
+                }
+            }
+        }
+    }
+}
+
+// Create a batcher that collects messages and publishes them together
+class NotificationBatcher implements AutoCloseable {
+    private final Subject subject;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService scheduler;
+
+    // Coalescing keeps only the first copy of a duplicate message in a window
+    private final Collection<String> pending;
+    private ScheduledFuture<?> scheduledFlush;
+
+    public NotificationBatcher(Subject subject, int maxBatchSize, long maxDelay, TimeUnit unit,
+            boolean coalesce, ScheduledExecutorService scheduler) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+        this.subject = subject;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.scheduler = scheduler;
+        this.pending = coalesce ? new LinkedHashSet<>() : new ArrayList<>();
+    }
+
+    // Add a message to the current window, publishing it once the window is full
+    public void publish(String message) {
+        List<String> ready = null;
+        synchronized (this) {
+            pending.add(message);
+            if (pending.size() >= maxBatchSize) {
+                ready = takePending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::flush, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        // Publish outside the lock so slow observers don't block other publishers
+        if (ready != null) {
+            subject.notifyObservers(ready);
+        }
+    }
+
+    // Publish whatever is in the current window right away
+    public void flush() {
+        List<String> ready;
+        synchronized (this) {
+            ready = takePending();
+        }
+        if (!ready.isEmpty()) {
+            subject.notifyObservers(ready);
         }
     }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private List<String> takePending() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<String> ready = new ArrayList<>(pending);
+        pending.clear();
+        return ready;
+    }
 }
 
 // Create concrete classes that are observers
-class EmailObserver implements ObserverObject {
+class EmailObserver implements BatchObserver {
     @Override
     public void announce(String message) {
         System.out.println("EmailObserver: " + message);
     }
+
+    // Send one email that lists every message instead of one email each
+    @Override
+    public void announceBatch(List<String> messages) {
+        System.out.println("EmailObserver: " + messages.size() + " messages " + messages);
+    }
 }
 
 class SMSObserver implements ObserverObject {
@@ -68,6 +2024,110 @@ class AppObserver implements ObserverObject {
 
 // Test the system
 public class Observer {
+    // Compare ring buffer publishing against calling every observer on the publisher's thread
+    private static void measureRingBuffer(int messages, int producers) throws InterruptedException {
+        int observers = 3;
+        NotificationSystem system = new NotificationSystem();
+        for (int i = 0; i < observers; i++) {
+            system.addObserver(message -> { });
+        }
+
+        long start = System.nanoTime();
+        runProducers(producers, messages / producers, system::notifyObservers);
+        long direct = System.nanoTime() - start;
+
+        // Only spin when every producer and consumer can have its own core
+        boolean enoughCores = Runtime.getRuntime().availableProcessors() >= producers + observers;
+        NotificationRingBuffer ringBuffer = system.toRingBuffer(1 << 16, enoughCores ? WaitStrategy.BUSY_SPIN : WaitStrategy.YIELD);
+        ringBuffer.start();
+        start = System.nanoTime();
+        runProducers(producers, messages / producers, ringBuffer::publish);
+        ringBuffer.close();
+        long ring = System.nanoTime() - start;
+
+        System.out.printf("%d messages to %d observers from %d producers:%n", messages, observers, producers);
+        System.out.printf("Direct notify: %.1f M messages/s%n", messages / (direct / 1e3));
+        System.out.printf("Ring buffer:   %.1f M messages/s%n", messages / (ring / 1e3));
+    }
+
+    // Subscribe weak observers and abandon them, checking that the heap and registry stay flat
+    private static void measureWeakObservers(int cycles) throws InterruptedException {
+        NotificationSystem system = new NotificationSystem();
+        Runtime runtime = Runtime.getRuntime();
+        System.out.println();
+        for (int i = 1; i <= cycles; i++) {
+            system.addWeakObserver(new AppObserver());
+            if (i % (cycles / 5) == 0) {
+                System.gc();
+                Thread.sleep(100); // Give the purge thread time to catch up
+                long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+                System.out.println(i + " weak observers abandoned: " + system.getObserverCount()
+                    + " still registered, " + usedMb + " MB heap used");
+            }
+        }
+    }
+
+    private static void runProducers(int producers, int messagesEach, ObserverObject publisher) throws InterruptedException {
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < messagesEach; j++) {
+                    publisher.announce("tick");
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    // Measure publish throughput with many publishers while observers are added and removed
+    private static void measureContention(int publishers, long durationMillis) throws InterruptedException {
+        NotificationSystem system = new NotificationSystem();
+        AtomicLong delivered = new AtomicLong();
+        for (int i = 0; i < 8; i++) {
+            system.addObserver(message -> delivered.incrementAndGet());
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong published = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < publishers; i++) {
+            threads.add(new Thread(() -> {
+                long count = 0;
+                while (running.get()) {
+                    system.notifyObservers("tick");
+                    count++;
+                }
+                published.addAndGet(count);
+            }));
+        }
+        // Churn thread keeps subscribing and unsubscribing observers the whole time
+        AtomicLong churned = new AtomicLong();
+        threads.add(new Thread(() -> {
+            while (running.get()) {
+                ObserverObject temporary = message -> { };
+                system.addObserver(temporary);
+                system.removeObserver(temporary);
+                churned.incrementAndGet();
+            }
+        }));
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(durationMillis);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        double seconds = durationMillis / 1000.0;
+        System.out.printf("%n%d publishers: %.0f notifications/s, %.0f deliveries/s, %.0f subscribe/unsubscribe pairs/s%n",
+            publishers, published.get() / seconds, delivered.get() / seconds, churned.get() / seconds);
+    }
+
     public static void main(String[] args) {
         NotificationSystem system = new NotificationSystem();
 
@@ -88,5 +2148,85 @@ public class Observer {
 
         // Notify remaining observers
         system.notifyObservers("The front window is broken.");
+
+        // Deliver on background threads so a slow observer doesn't block the publisher
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        NotificationSystem asyncSystem = new NotificationSystem(executor, 16, OverflowPolicy.DROP_OLDEST);
+        asyncSystem.addObservers(new EmailObserver(), new SMSObserver());
+        asyncSystem.notifyObservers("The garage door was opened.");
+        try {
+            asyncSystem.awaitDelivery(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+
+        // Collect a burst of sensor messages and send them as one batch
+        system.addObserver(Josh);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try (NotificationBatcher batcher = new NotificationBatcher(system, 10, 100, TimeUnit.MILLISECONDS, true, scheduler)) {
+            batcher.publish("Motion at the front door.");
+            batcher.publish("Motion at the front door.");
+            batcher.publish("The back door was opened.");
+        } finally {
+            scheduler.shutdown();
+        }
+
+        // Route messages by topic so observers only get what they subscribed to
+        NotificationSystem sensors = new NotificationSystem();
+        sensors.addObserver(new SMSObserver(), "door.front.*");
+        sensors.addObserver(new AppObserver(), "camera.#");
+        sensors.notifyObservers("door.front.open", "The front door was opened.");
+        sensors.notifyObservers("camera.garage.motion", "Motion in the garage.");
+        sensors.notifyObservers("door.back.open", "The back door was opened."); // Nobody subscribed
+
+        // Register a short-lived observer weakly so forgetting removeObserver doesn't leak it
+        sensors.addWeakObserver(new EmailObserver(), "door.#");
+
+        // Track how each observer is doing
+        sensors.enableMetrics(1);
+        sensors.registerMBean("sensors");
+        sensors.notifyObservers("door.front.closed", "The front door was closed.");
+        for (ObserverStats stats : sensors.getMetrics()) {
+            System.out.println(stats);
+        }
+
+        // Publish through a preallocated ring buffer
+        try (NotificationRingBuffer ringBuffer = system.toRingBuffer(1024, WaitStrategy.YIELD)) {
+            ringBuffer.start();
+            ringBuffer.publish("The driveway lights turned on.");
+        }
+
+        // Keep a durable outbox so an observer that was offline can replay what it missed
+        try {
+            Path outboxDirectory = Files.createTempDirectory("outbox");
+            NotificationSystem doorbell = new NotificationSystem();
+            try (NotificationOutbox outbox = new NotificationOutbox(outboxDirectory, 1 << 20, true)) {
+                doorbell.setOutbox(outbox);
+                doorbell.addDurableObserver("app", new AppObserver());
+                doorbell.notifyObservers("The doorbell rang.");
+                doorbell.removeDurableObserver("app"); // The app goes offline
+                doorbell.notifyObservers("A package was delivered.");
+            }
+            // Restart: reopen the outbox and reconnect, the missed message is replayed
+            try (NotificationOutbox outbox = new NotificationOutbox(outboxDirectory, 1 << 20, true)) {
+                doorbell.setOutbox(outbox);
+                doorbell.addDurableObserver("app", new AppObserver());
+            }
+        } catch (IOException e) {
+            System.out.println("Could not use the outbox: " + e.getMessage());
+        }
+
+        // Run with "benchmark" to measure contention with 64 publishers and subscription churn
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            try {
+                measureContention(64, 3000);
+                measureRingBuffer(20_000_000, 4);
+                measureWeakObservers(200_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 }
\ No newline at end of file
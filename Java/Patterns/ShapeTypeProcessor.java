@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+// Create an annotation processor that turns @ShapeType classes into a generated lookup table.
+// The generated class is in its own file, so the shapes and Factory.Shape/Factory.ShapeIndex
+// must be nested in a top-level class of their file (or be top-level in their own files).
+// Compile it first, then run it while compiling the shapes:
+//     javac ShapeTypeProcessor.java
+//     javac -processor ShapeTypeProcessor Factory.java
+@SupportedAnnotationTypes("ShapeType")
+public class ShapeTypeProcessor extends AbstractProcessor {
+    private static final String GENERATED_CLASS = "GeneratedShapeIndex";
+
+    private final List<ShapeEntry> shapes = new ArrayList<>();
+    private boolean generated;
+
+    // Store what we know about one annotated shape class
+    private static final class ShapeEntry {
+        final String name;
+        final String className;
+        final boolean stateless;
+
+        ShapeEntry(String name, String className, boolean stateless) {
+            this.name = name;
+            this.className = className;
+            this.stateless = stateless;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                collect(element, annotation);
+            }
+        }
+        // Generate once, in the first round, so the rest of the compilation can use the class
+        if (!generated) {
+            generated = true;
+            generate();
+        }
+        return true;
+    }
+
+    private void collect(Element element, TypeElement annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+            String name = null;
+            boolean stateless = true;
+            Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+                processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : values.entrySet()) {
+                String key = value.getKey().getSimpleName().toString();
+                if (key.equals("value")) {
+                    name = ((String) value.getValue().getValue()).toLowerCase(Locale.ROOT);
+                } else if (key.equals("stateless")) {
+                    stateless = (Boolean) value.getValue().getValue();
+                }
+            }
+            for (ShapeEntry shape : shapes) {
+                if (shape.name.equals(name)) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Shape type '" + name + "' is already used by " + shape.className, element);
+                    return;
+                }
+            }
+            shapes.add(new ShapeEntry(name, ((TypeElement) element).getQualifiedName().toString(), stateless));
+        }
+    }
+
+    // Search for a seed that gives every shape name its own slot (a perfect hash)
+    private int[] findPerfectHash() {
+        int size = Integer.highestOneBit(Math.max(shapes.size(), 1) * 2 - 1) * 2;
+        while (true) {
+            for (int seed = 0; seed < 100_000; seed++) {
+                Set<Integer> slots = new HashSet<>();
+                boolean perfect = true;
+                for (ShapeEntry shape : shapes) {
+                    if (!slots.add(hash(shape.name, seed) & (size - 1))) {
+                        perfect = false;
+                        break;
+                    }
+                }
+                if (perfect) {
+                    return new int[] { seed, size };
+                }
+            }
+            size *= 2;
+        }
+    }
+
+    // Must match the hash written into the generated class
+    private static int hash(String name, int seed) {
+        int hash = seed;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private void generate() {
+        int[] perfectHash = findPerfectHash();
+        int seed = perfectHash[0];
+        int size = perfectHash[1];
+        ShapeEntry[] bySlot = new ShapeEntry[size];
+        for (ShapeEntry shape : shapes) {
+            bySlot[hash(shape.name, seed) & (size - 1)] = shape;
+        }
+
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated by ShapeTypeProcessor from the @ShapeType classes, do not edit\n");
+        source.append("final class ").append(GENERATED_CLASS).append(" implements Factory.ShapeIndex {\n");
+        source.append("    private static final int SEED = ").append(seed).append(";\n");
+        source.append("    private static final int MASK = ").append(size - 1).append(";\n");
+        source.append("    private static final String[] NAMES = {");
+        for (int i = 0; i < size; i++) {
+            source.append(i == 0 ? " " : ", ");
+            source.append(bySlot[i] == null ? "null" : "\"" + bySlot[i].name + "\"");
+        }
+        source.append(" };\n\n");
+        for (int i = 0; i < size; i++) {
+            if (bySlot[i] != null && bySlot[i].stateless) {
+                source.append("    private static final Factory.Shape SHARED_").append(i)
+                    .append(" = new ").append(bySlot[i].className).append("();\n");
+            }
+        }
+        // Not private: ShapeFactory creates the one instance
+        source.append("\n    ").append(GENERATED_CLASS).append("() {\n    }\n\n");
+
+        source.append("    // Find the slot of a shape name, or -1 if it isn't an annotated shape\n");
+        source.append("    static int slot(String name) {\n");
+        source.append("        int hash = SEED;\n");
+        source.append("        for (int i = 0; i < name.length(); i++) {\n");
+        source.append("            hash = 31 * hash + Character.toLowerCase(name.charAt(i));\n");
+        source.append("        }\n");
+        source.append("        int slot = (hash ^ (hash >>> 16)) & MASK;\n");
+        source.append("        return NAMES[slot] != null && NAMES[slot].equalsIgnoreCase(name) ? slot : -1;\n");
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public boolean contains(String name) {\n");
+        source.append("        return slot(name) >= 0;\n");
+        source.append("    }\n\n");
+
+        source.append("    // Create a new shape, or return null if the name isn't an annotated shape\n");
+        source.append("    @Override\n");
+        source.append("    public Factory.Shape create(String name) {\n");
+        source.append("        switch (slot(name)) {\n");
+        for (int i = 0; i < size; i++) {
+            if (bySlot[i] != null) {
+                source.append("            case ").append(i).append(":\n");
+                source.append("                return new ").append(bySlot[i].className).append("();\n");
+            }
+        }
+        source.append("            default:\n                return null;\n        }\n    }\n\n");
+
+        source.append("    // Return the shared instance of a stateless shape (stateful shapes are still created)\n");
+        source.append("    @Override\n");
+        source.append("    public Factory.Shape shared(String name) {\n");
+        source.append("        switch (slot(name)) {\n");
+        for (int i = 0; i < size; i++) {
+            if (bySlot[i] != null) {
+                source.append("            case ").append(i).append(":\n");
+                source.append(bySlot[i].stateless
+                    ? "                return SHARED_" + i + ";\n"
+                    : "                return new " + bySlot[i].className + "();\n");
+            }
+        }
+        source.append("            default:\n                return null;\n        }\n    }\n}\n");
+
+        try (Writer writer = processingEnv.getFiler().createSourceFile(GENERATED_CLASS).openWriter()) {
+            writer.write(source.toString());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "Could not write " + GENERATED_CLASS + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,15 +1,52 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
 public class Singleton {
     // Private: Ensures the variable is accessible only within this class.
     // Static: Belongs to the class, so it's shared across all instances.
     // Volatile: Guarantees visibility and prevents thread caching or reordering issues.
     private static volatile Singleton barista;
 
+    // Striped mode: a fixed pool of baristas so threads stop fighting over one instance.
+    // The pool is only handed out through lease(), so each of its baristas has one user at a time.
+    private static volatile Singleton[] stripes;
+
+    // Each barista's own state, and whether a thread currently holds it through a lease
+    private long cupsMade;
+    private final AtomicBoolean leased = new AtomicBoolean();
+
     // Private constructor: Prevents external instantiation using the "new" keyword.
     private Singleton() {
         System.out.println("New barista hired!");
     }
 
+    // Switch to striped mode with a bounded pool of baristas (rounded up to a power of two).
+    // The pool can't be replaced later, since open leases would keep using the old one.
+    public static synchronized void useStripes(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + count);
+        }
+        if (stripes != null) {
+            throw new IllegalStateException("Striped mode is already on with " + stripes.length + " baristas");
+        }
+        int size = Integer.highestOneBit(count * 2 - 1);
+        Singleton[] pool = new Singleton[size];
+        for (int i = 0; i < size; i++) {
+            pool[i] = new Singleton();
+        }
+        stripes = pool;
+    }
+
+    // Pick a stripe from the thread id, mixed so neighbouring ids land on different stripes
+    private static int probe(int mask) {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
     // Public static method to provide access to the Singleton instance.
+    // This is always the one shared barista, striped mode doesn't change it.
     public static Singleton getInstance() {
         // First null check: Skips locking if the Singleton is already created
         if (barista == null) {
@@ -24,12 +61,239 @@ public class Singleton {
         return barista;
     }
 
+    // Borrow a barista for exclusive use: tries this thread's stripe first, then the others,
+    // and waits if the whole pool is busy. Close the lease to give the barista back.
+    public static Lease lease() {
+        Singleton[] pool = stripes;
+        if (pool == null) {
+            throw new IllegalStateException("Leasing needs striped mode, call useStripes() first");
+        }
+        int mask = pool.length - 1;
+        int start = probe(mask);
+        while (true) {
+            for (int i = 0; i < pool.length; i++) {
+                Singleton candidate = pool[(start + i) & mask];
+                if (!candidate.leased.get() && candidate.leased.compareAndSet(false, true)) {
+                    return new Lease(candidate);
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    // A barista borrowed from the striped pool
+    public static final class Lease implements AutoCloseable {
+        private Singleton barista;
+
+        private Lease(Singleton barista) {
+            this.barista = barista;
+        }
+
+        public Singleton barista() {
+            if (barista == null) {
+                throw new IllegalStateException("Lease was already returned");
+            }
+            return barista;
+        }
+
+        @Override
+        public void close() {
+            if (barista != null) {
+                barista.leased.set(false);
+                barista = null;
+            }
+        }
+    }
+
     // Methods for the barista to perform actions.
+    // Any thread may call these on the shared barista, so they don't touch its state.
     public void makeCoffee() {
         System.out.println("Barista is making coffee.");
     }
 
+    // Update the barista's state for one cup (not thread-safe, only call it under a lease or a lock)
+    void brew() {
+        cupsMade++;
+    }
+
+    // Cups counted by brew(), read it under the same lease or lock
+    public long getCupsMade() {
+        return cupsMade;
+    }
+
     public void serveCoffee() {
         System.out.println("Barista is serving coffee.");
     }
 }
+
+// Create a thread-safe lazy value that costs a plain field read once it is initialized
+final class Lazy<T> implements Supplier<T> {
+    // Starts as the initializer and is swapped for a constant holder after the first call
+    private Supplier<T> current;
+
+    public Lazy(Supplier<T> factory) {
+        this.current = new Initializer(factory);
+    }
+
+    // Create a lazy value and initialize it right away, for warming up at boot
+    public static <T> Lazy<T> eager(Supplier<T> factory) {
+        Lazy<T> lazy = new Lazy<>(factory);
+        lazy.get();
+        return lazy;
+    }
+
+    @Override
+    public T get() {
+        return current.get();
+    }
+
+    public boolean isInitialized() {
+        return current instanceof Constant;
+    }
+
+    // Holds the value in a final field, which makes it safe to publish without volatile
+    private static final class Constant<T> implements Supplier<T> {
+        private final T value;
+
+        Constant(T value) {
+            this.value = value;
+        }
+
+        @Override
+        public T get() {
+            return value;
+        }
+    }
+
+    private final class Initializer implements Supplier<T> {
+        private final Supplier<T> factory;
+
+        Initializer(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        // Only the first callers lock, and only until the constant is installed
+        @Override
+        public synchronized T get() {
+            if (current instanceof Constant) {
+                return current.get(); // Another thread finished first
+            }
+            T value = factory.get();
+            current = new Constant<>(value);
+            return value;
+        }
+    }
+}
+
+// Create a registry that holds one lazily created instance per type
+final class SingletonRegistry {
+    private static final Map<Class<?>, Supplier<?>> FACTORIES = new ConcurrentHashMap<>();
+
+    // ClassValue attaches the lazy instance to the Class object itself, so lookups skip hashing
+    private static final ClassValue<Lazy<?>> INSTANCES = new ClassValue<Lazy<?>>() {
+        @Override
+        protected Lazy<?> computeValue(Class<?> type) {
+            Supplier<?> factory = FACTORIES.get(type);
+            if (factory == null) {
+                throw new IllegalStateException("No singleton registered for " + type.getName());
+            }
+            return new Lazy<>(factory);
+        }
+    };
+
+    private SingletonRegistry() {
+    }
+
+    // Register how to create the single instance of a type (before it is first used)
+    public static <T> void register(Class<T> type, Supplier<? extends T> factory) {
+        if (FACTORIES.putIfAbsent(type, factory) != null) {
+            throw new IllegalStateException("Singleton already registered for " + type.getName());
+        }
+    }
+
+    // Get the single instance of a type, creating it on first use
+    public static <T> T get(Class<T> type) {
+        return type.cast(INSTANCES.get(type).get());
+    }
+
+    // Create every registered instance now, so requests never pay for the first use
+    public static void warmUp() {
+        for (Class<?> type : FACTORIES.keySet()) {
+            INSTANCES.get(type).get();
+        }
+    }
+}
+
+// Compare the ways of getting a singleton when many threads ask at once
+class SingletonBenchmark {
+    // Holder-class idiom: the JVM creates INSTANCE when Holder is first used, with no locks after that
+    private static final class Holder {
+        static final Object INSTANCE = new Object();
+    }
+
+    private static final Lazy<Object> LAZY = new Lazy<>(Object::new);
+
+    private static long measure(int threads, long callsPerThread, Supplier<?> accessor) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                int sink = 0;
+                for (long j = 0; j < callsPerThread; j++) {
+                    sink += accessor.get().hashCode() & 1;
+                }
+                if (sink == -1) {
+                    System.out.println(sink); // Keeps the loop from being optimized away
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    // Compare every thread locking the one barista against leasing from a striped pool
+    private static void measureStriping(long calls) throws InterruptedException {
+        Singleton shared = Singleton.getInstance();
+        System.out.println("\nthreads   one locked barista   striped leases (ms)");
+        long[] locked = new long[7];
+        for (int threads = 1, i = 0; threads <= 64; threads *= 2, i++) {
+            locked[i] = measure(threads, calls / threads, () -> {
+                synchronized (shared) {
+                    shared.brew();
+                }
+                return shared;
+            });
+        }
+        Singleton.useStripes(Runtime.getRuntime().availableProcessors());
+        for (int threads = 1, i = 0; threads <= 64; threads *= 2, i++) {
+            long striped = measure(threads, calls / threads, () -> {
+                try (Singleton.Lease lease = Singleton.lease()) {
+                    lease.barista().brew();
+                    return lease;
+                }
+            });
+            System.out.printf("%7d   %18d   %14d%n", threads, locked[i], striped);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        SingletonRegistry.register(Singleton.class, Singleton::getInstance);
+        SingletonRegistry.warmUp();
+        long calls = 50_000_000;
+
+        System.out.println("threads   DCL getInstance   holder   Lazy   ClassValue registry (ms)");
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            long perThread = calls / threads;
+            System.out.printf("%7d   %15d   %6d   %4d   %19d%n", threads,
+                measure(threads, perThread, Singleton::getInstance),
+                measure(threads, perThread, () -> Holder.INSTANCE),
+                measure(threads, perThread, LAZY),
+                measure(threads, perThread, () -> SingletonRegistry.get(Singleton.class)));
+        }
+
+        measureStriping(10_000_000);
+    }
+}
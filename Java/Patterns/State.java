@@ -1,41 +1,259 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 // Define the state interface to create different concrete state classes
 interface TrafficState {
     void switchState(TrafficLight trafficLight);
 }
 
-// Create concrete state classes for traffic light colors
+// Create the traffic light colors as shared states: they hold no data, so one instance of each is enough
+enum LightState implements TrafficState {
+    GREEN("green"),
+    YELLOW("yellow"),
+    RED("red");
+
+    // Transition table, indexed by ordinal: green -> yellow -> red -> green
+    private static final LightState[] NEXT = new LightState[values().length];
+
+    static {
+        NEXT[GREEN.ordinal()] = YELLOW;
+        NEXT[YELLOW.ordinal()] = RED;
+        NEXT[RED.ordinal()] = GREEN;
+    }
+
+    private final String color;
+
+    LightState(String color) {
+        this.color = color;
+    }
+
+    public LightState next() {
+        return NEXT[ordinal()];
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    @Override
+    public void switchState(TrafficLight trafficLight) {
+        LightState current = this;
+        while (!trafficLight.compareAndSetState(current, NEXT[current.ordinal()])) {
+            // Another thread switched the light first, so switch again from the state it left
+            TrafficState state = trafficLight.getState();
+            if (!(state instanceof LightState)) {
+                state.switchState(trafficLight);
+                return;
+            }
+            current = (LightState) state;
+        }
+    }
+}
+
+// Old per-color state classes, kept so existing code still compiles. Each one moves the light
+// to the same shared enum state that the matching LightState would
+@Deprecated
 class GreenLight implements TrafficState {
     @Override
     public void switchState(TrafficLight trafficLight) {
-        System.out.println("Switching from green to yellow light.");
-        trafficLight.setState(new YellowLight());
+        if (!trafficLight.compareAndSetState(this, LightState.YELLOW)) {
+            trafficLight.switchState(); // Another thread switched the light first
+        }
     }
 }
 
+@Deprecated
 class YellowLight implements TrafficState {
     @Override
     public void switchState(TrafficLight trafficLight) {
-        System.out.println("Switching from yellow light to red light.");
-        trafficLight.setState(new RedLight());
+        if (!trafficLight.compareAndSetState(this, LightState.RED)) {
+            trafficLight.switchState();
+        }
     }
 }
 
+@Deprecated
 class RedLight implements TrafficState {
     @Override
     public void switchState(TrafficLight trafficLight) {
-        System.out.println("Switching from red light to green light.");
-        trafficLight.setState(new GreenLight());
+        if (!trafficLight.compareAndSetState(this, LightState.GREEN)) {
+            trafficLight.switchState();
+        }
+    }
+}
+
+// Give states a small number for log records: the traffic light colors use their ordinal and
+// every custom state shares one code, so nothing has to remember custom state instances
+final class StateTable {
+    static final int CUSTOM = 0xFFFF;
+
+    private static final LightState[] LIGHT_STATES = LightState.values();
+
+    private StateTable() {
+    }
+
+    static int indexOf(TrafficState state) {
+        return state instanceof LightState ? ((LightState) state).ordinal() : CUSTOM;
+    }
+
+    // The traffic light color with this number, or null for a custom state
+    static LightState stateAt(int index) {
+        return index < LIGHT_STATES.length ? LIGHT_STATES[index] : null;
+    }
+}
+
+// Define a callback for reading transition records without creating objects.
+// States are numbered by StateTable: a traffic light color's ordinal, or StateTable.CUSTOM.
+interface TransitionRecordConsumer {
+    void accept(int lightId, int fromState, int toState, long timestamp);
+}
+
+// Create a fixed-size, lock-free log of transitions stored as primitive records.
+// Any number of threads can record, one thread at a time can drain. When the log is full the oldest
+// records are overwritten and counted as lost, so recording never blocks or allocates.
+final class TransitionLog {
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int mask;
+    // One record per slot: light id and both state numbers packed together, plus the time
+    private final long[] records;
+    private final long[] timestamps;
+    // Sequence number + 1 of the record in each slot, 0 while it's being written
+    private final long[] sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private long head;
+    private long lost;
+
+    // The capacity must be a power of two and much larger than the number of recording threads
+    public TransitionLog(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.mask = capacity - 1;
+        this.records = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.sequences = new long[capacity];
+    }
+
+    void record(int lightId, int fromState, int toState) {
+        long sequence = tail.getAndIncrement();
+        int slot = (int) sequence & mask;
+        SEQUENCES.setOpaque(sequences, slot, 0L);
+        VarHandle.storeStoreFence();
+        records[slot] = (long) lightId << 32 | (fromState & 0xFFFFL) << 16 | toState & 0xFFFFL;
+        timestamps[slot] = System.nanoTime();
+        SEQUENCES.setRelease(sequences, slot, sequence + 1);
+    }
+
+    // Hand every finished record to the consumer in order and return how many there were
+    public int drain(TransitionRecordConsumer consumer) {
+        if (!draining.compareAndSet(false, true)) {
+            throw new IllegalStateException("Transition log is already being drained");
+        }
+        try {
+            int drained = 0;
+            long end = tail.get();
+            // Records further back than the capacity have been overwritten
+            if (end - head > records.length) {
+                lost += end - records.length - head;
+                head = end - records.length;
+            }
+            while (head < end) {
+                int slot = (int) head & mask;
+                long published = (long) SEQUENCES.getAcquire(sequences, slot);
+                if (published == 0 || published < head + 1) {
+                    break; // Still being written, pick it up on the next drain
+                }
+                long record = records[slot];
+                long timestamp = timestamps[slot];
+                VarHandle.loadLoadFence();
+                if (published != head + 1 || (long) SEQUENCES.getAcquire(sequences, slot) != published) {
+                    lost++; // Overwritten by a newer record while we were reading
+                } else {
+                    consumer.accept((int) (record >>> 32), (int) (record >>> 16) & 0xFFFF, (int) record & 0xFFFF,
+                        timestamp);
+                    drained++;
+                }
+                head++;
+            }
+            return drained;
+        } finally {
+            draining.set(false);
+        }
+    }
+
+    // Number of records overwritten before they were drained
+    public long getLostCount() {
+        return lost;
+    }
+}
+
+// Define an optional listener that is told about every transition
+interface TransitionListener {
+    void onTransition(TrafficLight trafficLight, TrafficState from, TrafficState to);
+}
+
+// Create a listener that prints transitions, like the traffic light used to do itself
+class PrintingTransitionListener implements TransitionListener {
+    @Override
+    public void onTransition(TrafficLight trafficLight, TrafficState from, TrafficState to) {
+        System.out.println("Switching from " + describe(from) + " light to " + describe(to) + " light.");
+    }
+
+    private static String describe(TrafficState state) {
+        return state instanceof LightState ? ((LightState) state).getColor() : state.toString();
     }
 }
 
-// Create a concrete context class to manage the states
+// Create a concrete context class to manage the states.
+// It is safe to switch from several threads: every transition is a compare-and-set on the state field.
 class TrafficLight {
-    // Store the state in a variable
-    private TrafficState state;
+    private static final VarHandle STATE;
+    private static final VarHandle COUNTING_THREAD;
+    private static final VarHandle OWN_TRANSITIONS;
+    private static final VarHandle SHARED_TRANSITIONS;
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            STATE = lookup.findVarHandle(TrafficLight.class, "state", TrafficState.class);
+            COUNTING_THREAD = lookup.findVarHandle(TrafficLight.class, "countingThread", long.class);
+            OWN_TRANSITIONS = lookup.findVarHandle(TrafficLight.class, "ownTransitions", long.class);
+            SHARED_TRANSITIONS = lookup.findVarHandle(TrafficLight.class, "sharedTransitions", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int id = NEXT_ID.getAndIncrement();
+    // Store the state in a variable, only ever changed with a compare-and-set
+    private volatile TrafficState state;
+    // Transitions are counted without a locked instruction in the common case: the first thread that
+    // switches the light counts in a field only it writes, any other thread adds atomically to a
+    // second field, and getTransitionCount adds both
+    private volatile long countingThread; // Thread id, 0 until the first transition
+    private long ownTransitions;
+    private long sharedTransitions;
+    // Null when nobody is listening or logging, so transitions cost nothing extra
+    private volatile TransitionListener listener;
+    private volatile TransitionLog log;
 
     // Initialize the traffic light with the Red Light state
     public TrafficLight() {
-        this.state = new RedLight();
+        this.state = LightState.RED;
+    }
+
+    public int getId() {
+        return id;
     }
 
     // Getter for the current state
@@ -43,25 +261,365 @@ class TrafficLight {
         return state;
     }
 
-    // Setter for the current state
+    // Number of transitions so far, exact once the threads that switched the light are done
+    public long getTransitionCount() {
+        return (long) OWN_TRANSITIONS.getAcquire(this) + (long) SHARED_TRANSITIONS.getVolatile(this);
+    }
+
+    // Setter for the current state, whatever the state was before
     public void setState(TrafficState state) {
-        this.state = state;
+        if (state == null) {
+            throw new IllegalArgumentException("State cannot be null");
+        }
+        TrafficState previous = (TrafficState) STATE.getAndSet(this, state);
+        onTransition(previous, state);
+    }
+
+    // Change the state only if it is still the expected one, returns false if another thread got there first
+    public boolean compareAndSetState(TrafficState expected, TrafficState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("State cannot be null");
+        }
+        if (!STATE.compareAndSet(this, expected, state)) {
+            return false;
+        }
+        onTransition(expected, state);
+        return true;
+    }
+
+    private void countTransition() {
+        long thread = Thread.currentThread().getId();
+        long counting = countingThread;
+        if (counting == thread || (counting == 0 && COUNTING_THREAD.compareAndSet(this, 0L, thread))) {
+            OWN_TRANSITIONS.setRelease(this, ownTransitions + 1);
+            return;
+        }
+        SHARED_TRANSITIONS.getAndAdd(this, 1L);
+    }
+
+    private void onTransition(TrafficState from, TrafficState to) {
+        countTransition();
+        TransitionLog log = this.log;
+        if (log != null) {
+            log.record(id, StateTable.indexOf(from), StateTable.indexOf(to));
+        }
+        TransitionListener listener = this.listener;
+        if (listener != null) {
+            listener.onTransition(this, from, to);
+        }
+    }
+
+    // Setter for the transition listener (null to stop listening)
+    public void setTransitionListener(TransitionListener listener) {
+        this.listener = listener;
+    }
+
+    // Setter for the transition log (null to stop logging)
+    public void setTransitionLog(TransitionLog log) {
+        this.log = log;
     }
 
     // Method to trigger state transition
     public void switchState() {
-        state.switchState(this);
+        getState().switchState(this);
+    }
+}
+
+// Create a hierarchical timing wheel for one shard of traffic lights.
+// Level 0 has one slot per tick, each higher level has slots 64 times wider. Scheduling and
+// expiring are O(1): entries go straight into a slot and move down a level when their slot comes up.
+final class TimingWheel {
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+    static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private static final int NONE = -1;
+
+    // Lights are stored by index with primitive linked lists, so scheduling allocates nothing
+    private TrafficLight[] lights = new TrafficLight[16];
+    private int[] next = new int[16];
+    private long[] deadlines = new long[16];
+    private int size;
+    private final int[] heads = new int[LEVELS * SLOTS];
+    private long currentTick;
+
+    TimingWheel() {
+        Arrays.fill(heads, NONE);
+    }
+
+    int add(TrafficLight light, long delay) {
+        if (size == lights.length) {
+            lights = Arrays.copyOf(lights, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+            deadlines = Arrays.copyOf(deadlines, size * 2);
+        }
+        lights[size] = light;
+        schedule(size, currentTick + delay);
+        return size++;
+    }
+
+    // Move to the given tick, switching every light whose deadline it is and rescheduling it
+    void advanceTo(long tick, TrafficScheduler scheduler) {
+        while (currentTick < tick) {
+            currentTick++;
+            // Bring down entries from higher levels whose slot starts at this tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                long levelMask = (1L << (SLOT_BITS * level)) - 1;
+                if ((currentTick & levelMask) == 0) {
+                    cascade(level, slotIndex(level, currentTick));
+                }
+            }
+            int slot = slotIndex(0, currentTick);
+            int id = heads[slot];
+            heads[slot] = NONE;
+            while (id != NONE) {
+                int following = next[id];
+                TrafficLight light = lights[id];
+                light.switchState();
+                schedule(id, currentTick + scheduler.durationOf(light.getState()));
+                id = following;
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        int index = level * SLOTS + slot;
+        int id = heads[index];
+        heads[index] = NONE;
+        while (id != NONE) {
+            int following = next[id];
+            schedule(id, deadlines[id]);
+            id = following;
+        }
+    }
+
+    private void schedule(int id, long deadline) {
+        long delay = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int index = level * SLOTS + slotIndex(level, deadline);
+        deadlines[id] = deadline;
+        next[id] = heads[index];
+        heads[index] = id;
+    }
+
+    private static int slotIndex(int level, long tick) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+}
+
+// Create a scheduler that drives millions of traffic lights, each switching after its state's duration
+class TrafficScheduler {
+    private final TimingWheel[] shards;
+    private final ForkJoinPool pool;
+    private final long[] durations = new long[LightState.values().length];
+    private long defaultDuration = 1;
+    private long currentTick;
+    private int nextShard;
+
+    // More shards than threads lets idle threads steal leftover shards from busy ones
+    public TrafficScheduler(int shardCount, ForkJoinPool pool) {
+        this.shards = new TimingWheel[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new TimingWheel();
+        }
+        this.pool = pool;
+        Arrays.fill(durations, 1);
+    }
+
+    // Set how many ticks a light stays in a state
+    public void setDuration(LightState state, long ticks) {
+        durations[state.ordinal()] = checkDuration(ticks);
+    }
+
+    // Set the duration used for custom states that aren't LightStates
+    public void setDefaultDuration(long ticks) {
+        defaultDuration = checkDuration(ticks);
+    }
+
+    long durationOf(TrafficState state) {
+        return state instanceof LightState ? durations[((LightState) state).ordinal()] : defaultDuration;
+    }
+
+    // Add a light that first switches after the given delay (lets lights start out of phase).
+    // Lights must be added between ticks, not while tick() is running.
+    public void add(TrafficLight light, long initialDelay) {
+        shards[nextShard].add(light, checkDuration(initialDelay));
+        nextShard = (nextShard + 1) % shards.length;
+    }
+
+    public void add(TrafficLight light) {
+        add(light, durationOf(light.getState()));
+    }
+
+    // Advance every shard by one tick in parallel
+    public void tick() {
+        currentTick++;
+        pool.invoke(new AdvanceShards(0, shards.length, currentTick));
+    }
+
+    public long getCurrentTick() {
+        return currentTick;
+    }
+
+    private static long checkDuration(long ticks) {
+        if (ticks < 1 || ticks > TimingWheel.MAX_DELAY) {
+            throw new IllegalArgumentException("Duration must be between 1 and " + TimingWheel.MAX_DELAY + " ticks: " + ticks);
+        }
+        return ticks;
+    }
+
+    // Split the shards in half until one is left, so the pool can steal halves from busy threads
+    private final class AdvanceShards extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final long tick;
+
+        AdvanceShards(int from, int to, long tick) {
+            this.from = from;
+            this.to = to;
+            this.tick = tick;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                shards[from].advanceTo(tick, TrafficScheduler.this);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new AdvanceShards(from, middle, tick), new AdvanceShards(middle, to, tick));
+        }
     }
 }
 
 // Test the system
 public class State {
-    public static void main(String[] args) {
+    // Switch one light from several threads at once and check that no transition was lost
+    private static void measureConcurrentSwitching(int threads, int switchesPerThread) throws InterruptedException {
+        TrafficLight light = new TrafficLight();
+        TransitionLog log = new TransitionLog(1 << 20);
+        light.setTransitionLog(log);
+        long[] drained = new long[1];
+        TransitionRecordConsumer counter = (lightId, from, to, timestamp) -> drained[0]++;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < switchesPerThread; i++) {
+                    light.switchState();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        // Drain the log for auditing while the threads are switching
+        boolean running = true;
+        while (running) {
+            log.drain(counter);
+            running = false;
+            for (Thread worker : workers) {
+                running |= worker.isAlive();
+            }
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        log.drain(counter);
+
+        long expected = (long) threads * switchesPerThread;
+        System.out.printf("%d threads switching one light: %d of %d transitions applied, final state %s, "
+            + "%d logged + %d lost, %.1f ns per transition%n", threads, light.getTransitionCount(), expected,
+            light.getState(), drained[0], log.getLostCount(), (double) elapsed / expected);
+    }
+
+    // Drive millions of out-of-phase lights through the timing wheel
+    private static void measureScheduler(int lights, int ticks) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        TrafficScheduler scheduler = new TrafficScheduler(Math.max(1, pool.getParallelism()) * 8, pool);
+        scheduler.setDuration(LightState.GREEN, 30);
+        scheduler.setDuration(LightState.YELLOW, 5);
+        scheduler.setDuration(LightState.RED, 35);
+
+        Random random = new Random(42);
+        for (int i = 0; i < lights; i++) {
+            scheduler.add(new TrafficLight(), 1 + random.nextInt(35));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ticks; i++) {
+            scheduler.tick();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d lights, %d ticks: %.1f ms per tick%n", lights, ticks, elapsed / 1e6 / ticks);
+    }
+
+    // Measure how long a transition takes across many traffic lights
+    private static void measureTransitions(int lights, int rounds) {
+        TrafficLight[] intersections = new TrafficLight[lights];
+        for (int i = 0; i < lights; i++) {
+            intersections[i] = new TrafficLight();
+        }
+        for (int warmUp = 0; warmUp < 3; warmUp++) {
+            for (TrafficLight light : intersections) {
+                light.switchState();
+            }
+        }
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (TrafficLight light : intersections) {
+                light.switchState();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%n%d lights x %d rounds: %.2f ns per transition%n",
+            lights, rounds, (double) elapsed / ((long) lights * rounds));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
         TrafficLight trafficLight = new TrafficLight();
+        trafficLight.setTransitionListener(new PrintingTransitionListener());
 
         // Switch traffic light state 6 times
         for (int i = 0; i < 6; i++) {
             trafficLight.switchState();
         }
+
+        // Record transitions in a log and read them back as primitive records
+        TransitionLog log = new TransitionLog(16);
+        trafficLight.setTransitionLog(log);
+        trafficLight.setTransitionListener(null);
+        for (int i = 0; i < 3; i++) {
+            trafficLight.switchState();
+        }
+        log.drain((lightId, from, to, timestamp) -> System.out.println("Light " + lightId + " logged "
+            + StateTable.stateAt(from) + " -> " + StateTable.stateAt(to)));
+        trafficLight.setTransitionLog(null);
+
+        // Let a timing wheel switch the light: red for 3 ticks, green for 2, yellow for 1
+        TrafficScheduler scheduler = new TrafficScheduler(1, ForkJoinPool.commonPool());
+        scheduler.setDuration(LightState.RED, 3);
+        scheduler.setDuration(LightState.GREEN, 2);
+        scheduler.setDuration(LightState.YELLOW, 1);
+        scheduler.add(trafficLight);
+        for (int i = 0; i < 6; i++) {
+            scheduler.tick();
+            System.out.println("Tick " + scheduler.getCurrentTick() + ": " + trafficLight.getState());
+        }
+
+        // Run with "benchmark" to time transitions across a million intersections
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            measureTransitions(1_000_000, 20);
+            measureScheduler(5_000_000, 200);
+            measureConcurrentSwitching(4, 1_000_000);
+        }
     }
 }
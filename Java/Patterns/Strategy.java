@@ -1,37 +1,570 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Create the cent arithmetic shipping prices need. Costs are never negative, so rounding a
+// quotient only depends on how its remainder compares with half the divisor.
+final class ShippingMoney {
+    static final int SCALE = 2;
+    // Basis points in one whole, for rates such as discounts (2000 basis points = 20%)
+    static final long BASIS_POINTS = 10_000;
+
+    private ShippingMoney() {
+    }
+
+    // Cents from a configured amount. BigDecimal.valueOf reads the shortest decimal form of the double,
+    // so 0.1 is 10 cents and only a real fraction of a cent is rounded.
+    static long of(double amount, RoundingMode mode) {
+        return BigDecimal.valueOf(amount).movePointRight(SCALE).setScale(0, mode).longValueExact();
+    }
+
+    // Basis points from a fraction such as 0.8
+    static long basisPoints(double rate, RoundingMode mode) {
+        return BigDecimal.valueOf(rate).movePointRight(4).setScale(0, mode).longValueExact();
+    }
+
+    static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    // Divide a cost by a positive divisor, rounding the quotient with the given mode
+    static long divide(long cost, long divisor, RoundingMode mode) {
+        if (cost < 0 || divisor <= 0) {
+            throw new ArithmeticException("Can't divide a negative cost or by a divisor below one: " + cost + " / " + divisor);
+        }
+        long quotient = cost / divisor;
+        long remainder = cost % divisor;
+        if (remainder == 0) {
+            return quotient;
+        }
+        int half = Long.compare(remainder, divisor - remainder); // Above, at or below one half
+        switch (mode) {
+            case UP:
+            case CEILING:
+                return quotient + 1;
+            case DOWN:
+            case FLOOR:
+                return quotient;
+            case HALF_UP:
+                return half >= 0 ? quotient + 1 : quotient;
+            case HALF_DOWN:
+                return half > 0 ? quotient + 1 : quotient;
+            case HALF_EVEN:
+                return half > 0 || (half == 0 && (quotient & 1) != 0) ? quotient + 1 : quotient;
+            default:
+                throw new ArithmeticException("Rounding necessary");
+        }
+    }
+
+    static String format(long cents) {
+        return BigDecimal.valueOf(cents, SCALE).toPlainString();
+    }
+}
+
 // Create a pricing strategy 
 interface PricingStrategy {
     double calculateCost(double weight, int quantity);
+
+    // Cost in cents, with the weight in thousandths (grams when the weight is in kilograms).
+    // Strategies without exact arithmetic go through calculateCost and round its result once.
+    default long calculateCostCents(long milliWeight, int quantity, RoundingMode mode) {
+        return ShippingMoney.of(calculateCost(milliWeight / 1000.0, quantity), mode);
+    }
 }
 
-// Create a concrete class for electronics pricing
-class ElectronicShipping implements PricingStrategy {
+// Create a pricing strategy of the form (weight * rate) * quantity + fee, with an optional bulk discount.
+// Batch pricing reads these numbers into tables for FixedLinearShipping strategies instead of calling
+// calculateCost for every line.
+interface LinearPricingStrategy extends PricingStrategy {
+    double getRatePerWeight();
+
+    double getFlatFee();
+
+    // The discount applies when the quantity is above this, Integer.MAX_VALUE for no discount
+    default int getDiscountAbove() {
+        return Integer.MAX_VALUE;
+    }
+
+    default double getDiscountFactor() {
+        return 1.0;
+    }
+
+    // Derived from the numbers above, so the per-line and the batch price can't disagree
     @Override
-    public double calculateCost(double weight, int quantity) {
-        return (weight * 20) * quantity + 10;
+    default double calculateCost(double weight, int quantity) {
+        double cost = (weight * getRatePerWeight()) * quantity + getFlatFee();
+        return quantity > getDiscountAbove() ? cost * getDiscountFactor() : cost;
+    }
+
+    // Exact version: everything is kept in whole numbers and rounded once at the end
+    @Override
+    default long calculateCostCents(long milliWeight, int quantity, RoundingMode mode) {
+        long rate = ShippingMoney.of(getRatePerWeight(), RoundingMode.UNNECESSARY);
+        long fee = ShippingMoney.of(getFlatFee(), RoundingMode.UNNECESSARY);
+        long discount = quantity > getDiscountAbove()
+            ? ShippingMoney.basisPoints(getDiscountFactor(), RoundingMode.UNNECESSARY)
+            : ShippingMoney.BASIS_POINTS;
+        return exactCost(rate, fee, discount, milliWeight, quantity, mode);
+    }
+
+    // (weight * rate) * quantity + fee with the rate and fee in cents and the discount in basis points
+    static long exactCost(long rate, long fee, long discount, long milliWeight, int quantity, RoundingMode mode) {
+        // In thousandths of a cent
+        long cost = Math.addExact(Math.multiplyExact(Math.multiplyExact(rate, milliWeight), quantity),
+            Math.multiplyExact(fee, 1000));
+        if (discount != ShippingMoney.BASIS_POINTS) {
+            return ShippingMoney.divide(Math.multiplyExact(cost, discount), 1000 * ShippingMoney.BASIS_POINTS, mode);
+        }
+        return ShippingMoney.divide(cost, 1000, mode);
     }
 }
 
-// Create a concrete class for clothing pricing
-class ClothingShipping implements PricingStrategy {
+// Create a base for linear strategies whose numbers are fixed when they are created.
+// The getters and prices are final, so batch pricing can put the numbers in tables and still agree.
+abstract class FixedLinearShipping implements LinearPricingStrategy {
+    private final double ratePerWeight;
+    private final double flatFee;
+    private final int discountAbove;
+    private final double discountFactor;
+    // The same numbers in cents and basis points, converted once, or exact is false if they aren't whole
+    private final boolean exact;
+    private final long rateCents;
+    private final long feeCents;
+    private final long discountBasisPoints;
+
+    protected FixedLinearShipping(double ratePerWeight, double flatFee) {
+        this(ratePerWeight, flatFee, Integer.MAX_VALUE, 1.0);
+    }
+
+    protected FixedLinearShipping(double ratePerWeight, double flatFee, int discountAbove, double discountFactor) {
+        this.ratePerWeight = ratePerWeight;
+        this.flatFee = flatFee;
+        this.discountAbove = discountAbove;
+        this.discountFactor = discountFactor;
+        long rate = 0;
+        long fee = 0;
+        long discount = 0;
+        boolean whole = true;
+        try {
+            rate = ShippingMoney.of(ratePerWeight, RoundingMode.UNNECESSARY);
+            fee = ShippingMoney.of(flatFee, RoundingMode.UNNECESSARY);
+            discount = ShippingMoney.basisPoints(discountFactor, RoundingMode.UNNECESSARY);
+        } catch (ArithmeticException e) {
+            whole = false; // Only the exact path needs them, and it reports the error when it is used
+        }
+        this.exact = whole;
+        this.rateCents = rate;
+        this.feeCents = fee;
+        this.discountBasisPoints = discount;
+    }
+
+    // Final, like calculateCostCents, so a subclass can't price differently from the batch tables
     @Override
-    public double calculateCost(double weight, int quantity) {
-        return weight * quantity + 10;
+    public final double calculateCost(double weight, int quantity) {
+        double cost = (weight * ratePerWeight) * quantity + flatFee;
+        return quantity > discountAbove ? cost * discountFactor : cost;
+    }
+
+    @Override
+    public final long calculateCostCents(long milliWeight, int quantity, RoundingMode mode) {
+        if (!exact) {
+            return LinearPricingStrategy.super.calculateCostCents(milliWeight, quantity, mode);
+        }
+        long discount = quantity > discountAbove ? discountBasisPoints : ShippingMoney.BASIS_POINTS;
+        return LinearPricingStrategy.exactCost(rateCents, feeCents, discount, milliWeight, quantity, mode);
+    }
+
+    @Override
+    public final double getRatePerWeight() {
+        return ratePerWeight;
+    }
+
+    @Override
+    public final double getFlatFee() {
+        return flatFee;
+    }
+
+    @Override
+    public final int getDiscountAbove() {
+        return discountAbove;
+    }
+
+    @Override
+    public final double getDiscountFactor() {
+        return discountFactor;
+    }
+}
+
+// Create a concrete class for electronics pricing
+class ElectronicShipping extends FixedLinearShipping {
+    public ElectronicShipping() {
+        super(20, 10);
+    }
+}
+
+// Create a concrete class for clothing pricing
+class ClothingShipping extends FixedLinearShipping {
+    public ClothingShipping() {
+        super(1, 10);
     }
 }
 
 // Create a concrete class for book pricing
-class BookShipping implements PricingStrategy {
+class BookShipping extends FixedLinearShipping {
+    public BookShipping() {
+        super(10, 10, 5, 0.8); // Apply 20% discount above 5 items
+    }
+}
+
+// Create a pricing rule from a small rule language, so new rules don't need a new class. For example:
+//     rate 10                # cost per unit of weight, per item
+//     fee 10                 # flat fee per shipment
+//     tier 20 rate 8         # from 20 items up, use a different rate
+//     discount 20% above 5   # discounts apply in order when the quantity is above the limit
+// The cost is (weight * rate) * quantity + fee, then the discounts. Statements are separated by
+// new lines or semicolons, and # starts a comment.
+final class PricingRule {
+    private static final MethodHandle LINEAR;
+    private static final MethodHandle AT_LEAST;
+    private static final MethodHandle ABOVE;
+    private static final MethodHandle SCALE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            LINEAR = lookup.findStatic(PricingRule.class, "linear",
+                MethodType.methodType(double.class, double.class, int.class, double.class, double.class));
+            AT_LEAST = lookup.findStatic(PricingRule.class, "atLeast",
+                MethodType.methodType(boolean.class, int.class, int.class));
+            ABOVE = lookup.findStatic(PricingRule.class, "above",
+                MethodType.methodType(boolean.class, int.class, int.class));
+            SCALE = lookup.findStatic(PricingRule.class, "scale",
+                MethodType.methodType(double.class, double.class, double.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String source;
+    private final double rate;
+    private final double fee;
+    // Quantity tiers sorted by their lowest quantity: { minimum quantity, rate } pairs
+    private final List<double[]> tiers;
+    // Discounts in the order they were written: { quantity limit, factor } pairs
+    private final List<double[]> discounts;
+
+    private PricingRule(String source, double rate, double fee, List<double[]> tiers, List<double[]> discounts) {
+        this.source = source;
+        this.rate = rate;
+        this.fee = fee;
+        this.tiers = tiers;
+        this.discounts = discounts;
+    }
+
+    public static PricingRule parse(String source) {
+        Double rate = null;
+        double fee = 0;
+        List<double[]> tiers = new ArrayList<>();
+        List<double[]> discounts = new ArrayList<>();
+
+        String[] lines = source.split("\\R");
+        for (int lineNumber = 1; lineNumber <= lines.length; lineNumber++) {
+            String line = lines[lineNumber - 1];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            for (String statement : line.split(";")) {
+                String[] words = statement.trim().toLowerCase(Locale.ROOT).split("\\s+");
+                if (words[0].isEmpty()) {
+                    continue;
+                }
+                switch (words[0]) {
+                    case "rate":
+                        expectWords(words, 2, "rate <amount>", lineNumber);
+                        if (rate != null) {
+                            throw error("Rate is already set", lineNumber);
+                        }
+                        rate = amount(words[1], lineNumber);
+                        break;
+                    case "fee":
+                        expectWords(words, 2, "fee <amount>", lineNumber);
+                        fee = amount(words[1], lineNumber);
+                        break;
+                    case "tier":
+                        expectWords(words, 4, "tier <quantity> rate <amount>", lineNumber);
+                        if (!words[2].equals("rate")) {
+                            throw error("Expected 'tier <quantity> rate <amount>'", lineNumber);
+                        }
+                        int minimum = quantity(words[1], lineNumber);
+                        for (double[] tier : tiers) {
+                            if (tier[0] == minimum) {
+                                throw error("Tier " + minimum + " is already defined", lineNumber);
+                            }
+                        }
+                        tiers.add(new double[] { minimum, amount(words[3], lineNumber) });
+                        break;
+                    case "discount":
+                        expectWords(words, 4, "discount <percent>% above <quantity>", lineNumber);
+                        if (!words[1].endsWith("%") || !words[2].equals("above")) {
+                            throw error("Expected 'discount <percent>% above <quantity>'", lineNumber);
+                        }
+                        double percent = amount(words[1].substring(0, words[1].length() - 1), lineNumber);
+                        if (percent > 100) {
+                            throw error("Discount cannot be more than 100%", lineNumber);
+                        }
+                        // (100 - percent) / 100 rounds once, so 20% gives exactly the 0.8 a hand-written rule uses
+                        discounts.add(new double[] { quantity(words[3], lineNumber), (100 - percent) / 100 });
+                        break;
+                    default:
+                        throw error("Unknown statement '" + words[0] + "'", lineNumber);
+                }
+            }
+        }
+        if (rate == null) {
+            throw new IllegalArgumentException("Pricing rule has no rate");
+        }
+        tiers.sort((a, b) -> Double.compare(a[0], b[0]));
+        return new PricingRule(source, rate, fee, List.copyOf(tiers), List.copyOf(discounts));
+    }
+
+    private static void expectWords(String[] words, int count, String form, int lineNumber) {
+        if (words.length != count) {
+            throw error("Expected '" + form + "'", lineNumber);
+        }
+    }
+
+    private static double amount(String word, int lineNumber) {
+        try {
+            double amount = Double.parseDouble(word);
+            if (amount >= 0 && amount < Double.POSITIVE_INFINITY) {
+                return amount;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw error("Expected a non-negative amount but got '" + word + "'", lineNumber);
+    }
+
+    private static int quantity(String word, int lineNumber) {
+        try {
+            int quantity = Integer.parseInt(word);
+            if (quantity >= 0) {
+                return quantity;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw error("Expected a non-negative quantity but got '" + word + "'", lineNumber);
+    }
+
+    private static IllegalArgumentException error(String message, int lineNumber) {
+        return new IllegalArgumentException(message + " on line " + lineNumber);
+    }
+
+    // Turn the rule into a tree of method handles, with every number bound in as a constant
+    public PricingStrategy compile() {
+        // (weight, quantity) -> (weight * rate) * quantity + fee, highest matching tier first
+        MethodHandle cost = MethodHandles.insertArguments(LINEAR, 2, rate, fee);
+        for (double[] tier : tiers) {
+            cost = MethodHandles.guardWithTest(quantityTest(AT_LEAST, (int) tier[0]),
+                MethodHandles.insertArguments(LINEAR, 2, tier[1], fee), cost);
+        }
+        for (double[] discount : discounts) {
+            cost = MethodHandles.guardWithTest(quantityTest(ABOVE, (int) discount[0]),
+                MethodHandles.filterReturnValue(cost, MethodHandles.insertArguments(SCALE, 1, discount[1])), cost);
+        }
+        return CompiledPricingStrategy.create(source, cost);
+    }
+
+    // (weight, quantity) -> test(quantity, limit)
+    private static MethodHandle quantityTest(MethodHandle test, int limit) {
+        return MethodHandles.dropArguments(MethodHandles.insertArguments(test, 1, limit), 0, double.class);
+    }
+
+    private static double linear(double weight, int quantity, double rate, double fee) {
+        return (weight * rate) * quantity + fee;
+    }
+
+    private static boolean atLeast(int quantity, int minimum) {
+        return quantity >= minimum;
+    }
+
+    private static boolean above(int quantity, int limit) {
+        return quantity > limit;
+    }
+
+    private static double scale(double cost, double factor) {
+        return cost * factor;
+    }
+}
+
+// Create a strategy that runs a compiled pricing rule.
+// Every rule gets its own hidden copy of this class with the rule's method handle as class data. The
+// handle then sits in a static final field, which the JIT treats as a constant and inlines through,
+// so a rule runs like a hand-written strategy class instead of calling through an unknown handle.
+final class CompiledPricingStrategy implements PricingStrategy {
+    // The rule of this hidden copy, null in the original class
+    private static final MethodHandle RULE_COST = ruleCost();
+    private static byte[] template;
+
+    private final String source;
+    private final MethodHandle cost;
+
+    CompiledPricingStrategy(String source, MethodHandle cost) {
+        this.source = source;
+        this.cost = cost;
+    }
+
+    private static MethodHandle ruleCost() {
+        try {
+            return MethodHandles.classData(MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME, MethodHandle.class);
+        } catch (IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static PricingStrategy create(String source, MethodHandle cost) {
+        byte[] bytes = template();
+        if (bytes == null) {
+            return new CompiledPricingStrategy(source, cost); // Works, but without the constant handle
+        }
+        try {
+            MethodHandles.Lookup rule = MethodHandles.lookup().defineHiddenClassWithClassData(bytes, cost, true);
+            MethodHandle constructor = rule.findConstructor(rule.lookupClass(),
+                MethodType.methodType(void.class, String.class, MethodHandle.class));
+            return (PricingStrategy) constructor.invoke(source, cost);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not compile pricing rule: " + source, e);
+        }
+    }
+
+    // The class file of this class, or null when it can't be read (the rule then uses the shared class)
+    private static synchronized byte[] template() {
+        if (template == null) {
+            try (InputStream in = CompiledPricingStrategy.class.getResourceAsStream("CompiledPricingStrategy.class")) {
+                template = in == null ? new byte[0] : in.readAllBytes();
+            } catch (IOException e) {
+                template = new byte[0];
+            }
+        }
+        return template.length == 0 ? null : template;
+    }
+
     @Override
     public double calculateCost(double weight, int quantity) {
-        double baseCost = (weight * 10) * quantity + 10;
-        if (quantity > 5) {
-            baseCost *= 0.8; // Apply 20% discount
+        try {
+            // RULE_COST is constant, so in a hidden copy this check and the handle fold away
+            return RULE_COST != null ? (double) RULE_COST.invokeExact(weight, quantity)
+                : (double) cost.invokeExact(weight, quantity);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Pricing rule failed: " + source, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
+
+// Create the kinds of goods we ship, each priced by its own strategy
+enum ShippingCategory {
+    ELECTRONICS,
+    CLOTHING,
+    BOOKS
+}
+
+// Create a table from category to strategy that many threads can read while strategies are swapped.
+// Reads and swaps are single atomic operations on one array element, so nothing ever locks.
+final class StrategyTable {
+    private final AtomicReferenceArray<PricingStrategy> strategies =
+        new AtomicReferenceArray<>(ShippingCategory.values().length);
+
+    public PricingStrategy get(ShippingCategory category) {
+        return strategies.get(category.ordinal());
+    }
+
+    // Install a strategy and return the one it replaced (null if there was none)
+    public PricingStrategy swap(ShippingCategory category, PricingStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("Strategy cannot be null");
+        }
+        return strategies.getAndSet(category.ordinal(), strategy);
+    }
+
+    // Install a strategy only if the current one is still the expected one
+    public boolean swap(ShippingCategory category, PricingStrategy expected, PricingStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("Strategy cannot be null");
+        }
+        return strategies.compareAndSet(category.ordinal(), expected, strategy);
+    }
+}
+
+// Create the inputs of one quote, immutable so it can be passed between threads freely
+record QuoteRequest(ShippingCategory category, double weight, int quantity) {
+    QuoteRequest {
+        if (category == null) {
+            throw new IllegalArgumentException("Category cannot be null");
+        }
+        if (!(weight >= 0) || quantity < 0) {
+            throw new IllegalArgumentException("Weight and quantity cannot be negative: " + weight + ", " + quantity);
         }
-        return baseCost;
     }
 }
 
-// Create a calculator class that will use calculator
+// Create a calculator that holds no per-quote state, so one instance can serve every thread.
+// Inputs come with each call, and the strategy is looked up in the table every time, so a swap
+// takes effect on the next quote.
+final class ShippingQuoter {
+    private final StrategyTable strategies;
+
+    public ShippingQuoter(StrategyTable strategies) {
+        this.strategies = strategies;
+    }
+
+    public double quote(ShippingCategory category, double weight, int quantity) {
+        PricingStrategy strategy = strategies.get(category);
+        if (strategy == null) {
+            throw new IllegalStateException("No PricingStrategy for " + category + ". Use StrategyTable.swap() to add one.");
+        }
+        return strategy.calculateCost(weight, quantity);
+    }
+
+    public double quote(QuoteRequest request) {
+        return quote(request.category(), request.weight(), request.quantity());
+    }
+
+    // Quote in cents, with the weight in thousandths
+    public long quoteCents(ShippingCategory category, long milliWeight, int quantity, RoundingMode mode) {
+        PricingStrategy strategy = strategies.get(category);
+        if (strategy == null) {
+            throw new IllegalStateException("No PricingStrategy for " + category + ". Use StrategyTable.swap() to add one.");
+        }
+        return strategy.calculateCostCents(milliWeight, quantity, mode);
+    }
+}
+
+// Create a calculator class that will use calculator.
+// It keeps the inputs in fields, so use one per thread, or share a ShippingQuoter instead.
 class ShippingCalculator {
     // Create a variable for the strategy and it's parameters
     private PricingStrategy strategy;
@@ -68,9 +601,328 @@ class ShippingCalculator {
     }
 }
 
+// Create a calculator that prices whole columns of cart lines at once, one strategy per category byte
+class BatchShippingCalculator {
+    private static final int CATEGORIES = 256;
+    // Below this many lines a chunk is priced on the current thread instead of being split further
+    private static final int SPLIT_THRESHOLD = 1 << 14;
+
+    private final PricingStrategy[] strategies = new PricingStrategy[CATEGORIES];
+    // Coefficient tables indexed by category, so the main loop has no virtual calls and no if statements
+    private final double[] rates = new double[CATEGORIES];
+    private final double[] fees = new double[CATEGORIES];
+    private final int[] discountAbove = new int[CATEGORIES];
+    private final double[] discountFactors = new double[CATEGORIES];
+    // Categories the tables can't express get a NaN fee, so their lines come out as NaN and only a range
+    // that has one is priced again, line by line. Only FixedLinearShipping goes into the tables: its
+    // calculateCost is final, while any other strategy (even a LinearPricingStrategy) may override it.
+    private final boolean[] perLine = new boolean[CATEGORIES];
+    private final ForkJoinPool pool;
+
+    // The strategy at index i prices lines of category i
+    public BatchShippingCalculator(ForkJoinPool pool, PricingStrategy... byCategory) {
+        if (byCategory.length > CATEGORIES) {
+            throw new IllegalArgumentException("At most " + CATEGORIES + " categories are supported");
+        }
+        for (int c = 0; c < CATEGORIES; c++) {
+            PricingStrategy strategy = c < byCategory.length ? byCategory[c] : null;
+            strategies[c] = strategy;
+            discountAbove[c] = Integer.MAX_VALUE;
+            discountFactors[c] = 1.0;
+            if (strategy instanceof FixedLinearShipping) {
+                FixedLinearShipping linear = (FixedLinearShipping) strategy;
+                rates[c] = linear.getRatePerWeight();
+                fees[c] = linear.getFlatFee();
+                discountAbove[c] = linear.getDiscountAbove();
+                discountFactors[c] = linear.getDiscountFactor();
+            } else {
+                perLine[c] = true;
+                rates[c] = Double.NaN;
+                fees[c] = Double.NaN;
+            }
+        }
+        this.pool = pool;
+    }
+
+    // Price every line into costs, splitting the work across the pool
+    public void calculateCosts(double[] weights, int[] quantities, byte[] categories, double[] costs) {
+        int length = weights.length;
+        if (quantities.length != length || categories.length != length || costs.length < length) {
+            throw new IllegalArgumentException("Weight, quantity and category columns must have the same length"
+                + " and the cost column must be at least as long");
+        }
+        pool.invoke(new PriceRange(weights, quantities, categories, costs, 0, length));
+    }
+
+    // Price lines [from, to) on the current thread
+    public void calculateCosts(double[] weights, int[] quantities, byte[] categories, double[] costs, int from,
+            int to) {
+        // Any NaN line makes the sum NaN, so one check after the loop finds them all
+        double sentinel = 0;
+        for (int i = from; i < to; i++) {
+            int c = categories[i] & 0xFF;
+            int quantity = quantities[i];
+            double cost = (weights[i] * rates[c]) * quantity + fees[c];
+            // A conditional select rather than a branch, the JIT turns it into a cmov
+            cost *= quantity > discountAbove[c] ? discountFactors[c] : 1.0;
+            costs[i] = cost;
+            sentinel += cost;
+        }
+        // NaN can also come from the input (or infinities that cancel), the second pass only reprices
+        // categories the tables don't cover
+        if (Double.isNaN(sentinel)) {
+            for (int i = from; i < to; i++) {
+                int c = categories[i] & 0xFF;
+                if (perLine[c]) {
+                    if (strategies[c] == null) {
+                        throw new IllegalArgumentException("No pricing strategy for category " + c + " at line " + i);
+                    }
+                    costs[i] = strategies[c].calculateCost(weights[i], quantities[i]);
+                }
+            }
+        }
+    }
+
+    // Split the range in half until it is small enough, idle threads steal the other halves
+    private final class PriceRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] weights;
+        private final int[] quantities;
+        private final byte[] categories;
+        private final double[] costs;
+        private final int from;
+        private final int to;
+
+        PriceRange(double[] weights, int[] quantities, byte[] categories, double[] costs, int from, int to) {
+            this.weights = weights;
+            this.quantities = quantities;
+            this.categories = categories;
+            this.costs = costs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                calculateCosts(weights, quantities, categories, costs, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new PriceRange(weights, quantities, categories, costs, from, middle),
+                new PriceRange(weights, quantities, categories, costs, middle, to));
+        }
+    }
+}
+
 // Test the design pattern
 public class Strategy {
-    public static void main(String[] args) {
+    // Compare pricing cart lines one at a time through the calculator with pricing them as columns
+    private static void measureBatchPricing(int lines, int rounds) {
+        PricingStrategy[] byCategory = { new ElectronicShipping(), new ClothingShipping(), new BookShipping() };
+        Random random = new Random(42);
+        double[] weights = new double[lines];
+        int[] quantities = new int[lines];
+        byte[] categories = new byte[lines];
+        for (int i = 0; i < lines; i++) {
+            weights[i] = 0.1 + random.nextDouble() * 20;
+            quantities[i] = 1 + random.nextInt(10);
+            categories[i] = (byte) random.nextInt(byCategory.length);
+        }
+        double[] expected = new double[lines];
+        double[] costs = new double[lines];
+        BatchShippingCalculator batch = new BatchShippingCalculator(ForkJoinPool.commonPool(), byCategory);
+        ShippingCalculator calculator = new ShippingCalculator(0, 0);
+
+        for (int round = 0; round <= rounds; round++) {
+            // Round 0 warms up
+            long start = System.nanoTime();
+            for (int i = 0; i < lines; i++) {
+                calculator.setStrategy(byCategory[categories[i]]);
+                calculator.setWeight(weights[i]);
+                calculator.setQuantity(quantities[i]);
+                expected[i] = calculator.calculateCost();
+            }
+            long perLine = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            batch.calculateCosts(weights, quantities, categories, costs, 0, lines);
+            long sequential = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            batch.calculateCosts(weights, quantities, categories, costs);
+            long parallel = System.nanoTime() - start;
+
+            if (round > 0) {
+                System.out.printf("%d lines: per line %.2f ns, batch %.2f ns, batch on %d threads %.2f ns%n", lines,
+                    (double) perLine / lines, (double) sequential / lines, ForkJoinPool.commonPool().getParallelism(),
+                    (double) parallel / lines);
+            }
+        }
+        for (int i = 0; i < lines; i++) {
+            if (Double.doubleToLongBits(costs[i]) != Double.doubleToLongBits(expected[i])) {
+                throw new IllegalStateException("Batch cost " + costs[i] + " differs from " + expected[i] + " at line " + i);
+            }
+        }
+        System.out.println("Batch costs match the per-line costs exactly");
+    }
+
+    // Compare each hand-coded strategy with the same rule written in the rule language
+    private static void measureCompiledRules(int lines, int rounds) {
+        PricingStrategy[] handCoded = { new ElectronicShipping(), new ClothingShipping(), new BookShipping() };
+        PricingStrategy[] compiled = {
+            PricingRule.parse("rate 20; fee 10").compile(),
+            PricingRule.parse("rate 1; fee 10").compile(),
+            PricingRule.parse("rate 10; fee 10; discount 20% above 5").compile()
+        };
+        Random random = new Random(42);
+        double[] weights = new double[lines];
+        int[] quantities = new int[lines];
+        for (int i = 0; i < lines; i++) {
+            weights[i] = 0.1 + random.nextDouble() * 20;
+            quantities[i] = 1 + random.nextInt(10);
+        }
+
+        for (int s = 0; s < handCoded.length; s++) {
+            long handTime = 0;
+            long compiledTime = 0;
+            for (int round = 0; round <= rounds; round++) {
+                long start = System.nanoTime();
+                double handTotal = priceAll(handCoded[s], weights, quantities);
+                long middle = System.nanoTime();
+                double compiledTotal = priceAll(compiled[s], weights, quantities);
+                long end = System.nanoTime();
+                if (Double.doubleToLongBits(handTotal) != Double.doubleToLongBits(compiledTotal)) {
+                    throw new IllegalStateException("Rule '" + compiled[s] + "' gives " + compiledTotal
+                        + " instead of " + handTotal);
+                }
+                // Round 0 warms up
+                if (round > 0) {
+                    handTime += middle - start;
+                    compiledTime += end - middle;
+                }
+            }
+            System.out.printf("%-20s %.2f ns per line, rule '%s' %.2f ns per line%n",
+                handCoded[s].getClass().getSimpleName(), (double) handTime / ((long) lines * rounds), compiled[s],
+                (double) compiledTime / ((long) lines * rounds));
+        }
+    }
+
+    private static double priceAll(PricingStrategy strategy, double[] weights, int[] quantities) {
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += strategy.calculateCost(weights[i], quantities[i]);
+        }
+        return total;
+    }
+
+    // Quote from more and more threads through one shared quoter while another thread keeps swapping strategies
+    private static void measureQuoteThroughput(int quotesPerThread) throws InterruptedException {
+        StrategyTable table = new StrategyTable();
+        table.swap(ShippingCategory.ELECTRONICS, new ElectronicShipping());
+        table.swap(ShippingCategory.CLOTHING, new ClothingShipping());
+        PricingStrategy handCoded = new BookShipping();
+        PricingStrategy rule = PricingRule.parse("rate 10; fee 10; discount 20% above 5").compile();
+        table.swap(ShippingCategory.BOOKS, handCoded);
+        ShippingQuoter quoter = new ShippingQuoter(table);
+
+        ShippingCategory[] categories = ShippingCategory.values();
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread swapper = new Thread(() -> {
+                while (running.get()) {
+                    table.swap(ShippingCategory.BOOKS, table.get(ShippingCategory.BOOKS) == handCoded ? rule : handCoded);
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            swapper.setDaemon(true);
+            swapper.start();
+
+            Thread[] workers = new Thread[threads];
+            double[] totals = new double[threads];
+            for (int t = 0; t < threads; t++) {
+                int worker = t;
+                workers[t] = new Thread(() -> {
+                    double total = 0;
+                    for (int i = 0; i < quotesPerThread; i++) {
+                        total += quoter.quote(categories[i % categories.length], 0.5 + (i & 15), 1 + (i & 7));
+                    }
+                    totals[worker] = total;
+                });
+            }
+            long start = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            running.set(false);
+            swapper.join();
+            System.out.printf("%d threads: %.1f million quotes per second%n", threads,
+                (double) threads * quotesPerThread / elapsed * 1000);
+        }
+    }
+
+    // Compare pricing books with doubles, with long cents and with BigDecimal
+    private static void measureMoneyPaths(int lines, int rounds) {
+        PricingStrategy books = new BookShipping();
+        long[] milliWeights = new long[1024];
+        int[] quantities = new int[1024];
+        for (int i = 0; i < milliWeights.length; i++) {
+            milliWeights[i] = 100 + (i * 7919L) % 20_000;
+            quantities[i] = 1 + i % 10;
+        }
+        BigDecimal rate = BigDecimal.TEN;
+        BigDecimal fee = BigDecimal.TEN;
+        BigDecimal discount = new BigDecimal("0.8");
+
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            double doubleTotal = 0;
+            for (int i = 0; i < lines; i++) {
+                doubleTotal += books.calculateCost(milliWeights[i & 1023] / 1000.0, quantities[i & 1023]);
+            }
+            long doubleTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long total = 0;
+            for (int i = 0; i < lines; i++) {
+                total = ShippingMoney.add(total, books.calculateCostCents(milliWeights[i & 1023], quantities[i & 1023],
+                    RoundingMode.HALF_EVEN));
+            }
+            long centsTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            BigDecimal decimalTotal = BigDecimal.ZERO;
+            for (int i = 0; i < lines; i++) {
+                int quantity = quantities[i & 1023];
+                BigDecimal cost = BigDecimal.valueOf(milliWeights[i & 1023], 3).multiply(rate)
+                    .multiply(BigDecimal.valueOf(quantity)).add(fee);
+                if (quantity > 5) {
+                    cost = cost.multiply(discount);
+                }
+                decimalTotal = decimalTotal.add(cost.setScale(ShippingMoney.SCALE, RoundingMode.HALF_EVEN));
+            }
+            long decimalTime = System.nanoTime() - start;
+
+            // Round 0 warms up
+            if (round > 0) {
+                System.out.printf("%d book lines: double %.2f ns, long cents %.2f ns, BigDecimal %.2f ns (%.2f, %s, %s)%n",
+                    lines, (double) doubleTime / lines, (double) centsTime / lines, (double) decimalTime / lines,
+                    doubleTotal, ShippingMoney.format(total), decimalTotal);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
         // Initialize the calculator without a strategy
         ShippingCalculator shippingCalculator = new ShippingCalculator(5, 2);
 
@@ -87,5 +939,36 @@ public class Strategy {
         shippingCalculator.setWeight(0.5);
         shippingCalculator.setQuantity(6);
         System.out.println("Books Shipping Cost: " + shippingCalculator.calculateCost());
+
+        // Write the book rule in the rule language instead of a class
+        shippingCalculator.setStrategy(PricingRule.parse("rate 10\nfee 10\ndiscount 20% above 5").compile());
+        System.out.println("Books Shipping Cost (rule): " + shippingCalculator.calculateCost());
+
+        // Share one quoter between threads and swap the book strategy while it's in use
+        StrategyTable table = new StrategyTable();
+        table.swap(ShippingCategory.ELECTRONICS, new ElectronicShipping());
+        table.swap(ShippingCategory.BOOKS, new BookShipping());
+        ShippingQuoter quoter = new ShippingQuoter(table);
+        System.out.println("Books Quote: " + quoter.quote(new QuoteRequest(ShippingCategory.BOOKS, 0.5, 6)));
+        table.swap(ShippingCategory.BOOKS, PricingRule.parse("rate 10; fee 10; discount 50% above 5").compile());
+        System.out.println("Books Quote (sale): " + quoter.quote(ShippingCategory.BOOKS, 0.5, 6));
+        table.swap(ShippingCategory.BOOKS, new BookShipping());
+        System.out.println("Books Quote (cents): " + ShippingMoney.format(quoter.quoteCents(ShippingCategory.BOOKS, 333, 7,
+            RoundingMode.HALF_EVEN)));
+
+        // Price a whole cart at once: category 0 is electronics, 1 is clothing, 2 is books
+        BatchShippingCalculator batch = new BatchShippingCalculator(ForkJoinPool.commonPool(),
+            new ElectronicShipping(), new ClothingShipping(), new BookShipping());
+        double[] costs = new double[3];
+        batch.calculateCosts(new double[] { 5, 5, 0.5 }, new int[] { 2, 2, 6 }, new byte[] { 0, 1, 2 }, costs);
+        System.out.println("Batch Shipping Costs: " + costs[0] + ", " + costs[1] + ", " + costs[2]);
+
+        // Run with "benchmark" to compare per-line and batch pricing
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            measureBatchPricing(20_000_000, 5);
+            measureCompiledRules(10_000_000, 5);
+            measureQuoteThroughput(20_000_000);
+            measureMoneyPaths(10_000_000, 5);
+        }
     }
 }
\ No newline at end of file
@@ -1,41 +1,143 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.List;
 
+// Create the cent arithmetic for account balances. Balances can be negative (overdrafts), so
+// interest is rounded with the sign of the exact result in mind.
+final class AccountMoney {
+    static final int SCALE = 2;
+    static final long ONE = 100;
+    // Interest rates are whole millionths (50_000 is 5%), enough for rates such as 0.125%
+    static final long RATE_SCALE = 1_000_000;
+
+    private AccountMoney() {
+    }
+
+    // Cents from an amount such as 12.345, rounded with the given mode
+    static long of(double amount, RoundingMode mode) {
+        return BigDecimal.valueOf(amount).movePointRight(SCALE).setScale(0, mode).longValueExact();
+    }
+
+    // Millionths from a rate such as 0.05, a rate with a finer fraction is rejected rather than rounded
+    static long rate(double rate) {
+        try {
+            return BigDecimal.valueOf(rate).movePointRight(6).setScale(0, RoundingMode.UNNECESSARY).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Rate can't be kept exactly in millionths: " + rate, e);
+        }
+    }
+
+    static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    // Interest on a balance, for example applyRate(1000, 50_000, mode) is 5% of 10.00
+    static long applyRate(long cents, long rate, RoundingMode mode) {
+        long exact = Math.multiplyExact(cents, rate);
+        long truncated = exact / RATE_SCALE; // Toward zero
+        long remainder = exact % RATE_SCALE;
+        if (remainder == 0) {
+            return truncated;
+        }
+        int sign = exact < 0 ? -1 : 1;
+        int half = Long.compare(Math.abs(remainder), RATE_SCALE - Math.abs(remainder));
+        boolean awayFromZero;
+        switch (mode) {
+            case UP:
+                awayFromZero = true;
+                break;
+            case DOWN:
+                awayFromZero = false;
+                break;
+            case CEILING:
+                awayFromZero = sign > 0;
+                break;
+            case FLOOR:
+                awayFromZero = sign < 0;
+                break;
+            case HALF_UP:
+                awayFromZero = half >= 0;
+                break;
+            case HALF_DOWN:
+                awayFromZero = half > 0;
+                break;
+            case HALF_EVEN:
+                awayFromZero = half > 0 || (half == 0 && (truncated & 1) != 0);
+                break;
+            default:
+                throw new ArithmeticException("Rounding necessary");
+        }
+        return awayFromZero ? truncated + sign : truncated;
+    }
+
+    static double toDouble(long cents) {
+        return (double) cents / ONE;
+    }
+
+    static String format(long cents) {
+        return BigDecimal.valueOf(cents, SCALE).toPlainString();
+    }
+}
+
 public abstract class BankAccount {
+    // Amounts given as doubles are rounded to the nearest cent, ties to even
+    protected static final RoundingMode ROUNDING = RoundingMode.HALF_EVEN;
+
     private final String accountHolder;
     private final String accountType;
-    private double balance; // Private attribute
+    private long balance; // Private attribute, in cents
 
     // Constructor
     public BankAccount(String accountHolder, String accountType, double balance) {
         this.accountHolder = accountHolder;
         this.accountType = accountType;
-        this.balance = balance;
+        this.balance = AccountMoney.of(balance, ROUNDING);
     }
 
     // Deposit method
     public void deposit(double amount) {
+        depositCents(AccountMoney.of(amount, ROUNDING));
+    }
+
+    public void depositCents(long amount) {
         if (amount > 0) {
-            this.balance += amount;
+            this.balance = AccountMoney.add(this.balance, amount);
         }
     }
 
     // Withdraw method
     public void withdraw(double amount) {
+        withdrawCents(AccountMoney.of(amount, ROUNDING));
+    }
+
+    public void withdrawCents(long amount) {
         if (amount > 0 && amount <= this.balance) {
-            this.balance -= amount;
+            this.balance = AccountMoney.subtract(this.balance, amount);
         }
     }
 
     // Transfer method
     public void transfer(double amount, BankAccount targetAccount) {
+        transferCents(AccountMoney.of(amount, ROUNDING), targetAccount);
+    }
+
+    public void transferCents(long amount, BankAccount targetAccount) {
         if (this.accountType.equals(targetAccount.accountType) && this.balance >= amount) {
-            this.withdraw(amount);
-            targetAccount.deposit(amount);
+            this.withdrawCents(amount);
+            targetAccount.depositCents(amount);
         }
     }
 
     // Getter for balance
     public double getBalance() {
+        return AccountMoney.toDouble(this.balance);
+    }
+
+    public long getBalanceCents() {
         return this.balance;
     }
 
@@ -46,12 +148,12 @@ public abstract class BankAccount {
 }
 
 class SavingsAccount extends BankAccount {
-    private double interestRate;
+    private long interestRate; // In millionths, 50_000 is 5%
 
     // Constructor
     public SavingsAccount(String accountHolder, double balance, double interestRate) {
         super(accountHolder, "savings", balance);
-        this.interestRate = interestRate;
+        this.interestRate = AccountMoney.rate(interestRate);
     }
 
     // Default constructor with interest rate of 5%
@@ -61,19 +163,24 @@ class SavingsAccount extends BankAccount {
 
     // Apply interest
     public void applyInterest() {
-        double newBalance = getBalance() + (getBalance() * this.interestRate);
+        applyInterest(ROUNDING);
+    }
+
+    // Apply interest, rounding fractions of a cent with the given mode
+    public void applyInterest(RoundingMode mode) {
+        long interest = AccountMoney.applyRate(getBalanceCents(), this.interestRate, mode);
         // Using deposit to update balance
-        super.deposit(newBalance - getBalance());
+        super.depositCents(interest);
     }
 }
 
 class CheckingAccount extends BankAccount {
-    private double overdraftLimit;
+    private long overdraftLimit; // In cents
 
     // Constructor
     public CheckingAccount(String accountHolder, double balance, double overdraftLimit) {
         super(accountHolder, "checking", balance);
-        this.overdraftLimit = overdraftLimit;
+        this.overdraftLimit = AccountMoney.of(overdraftLimit, ROUNDING);
     }
 
     // Default constructor with overdraft limit of $500
@@ -83,19 +190,81 @@ class CheckingAccount extends BankAccount {
 
     // Overriding withdraw method
     @Override
-    public void withdraw(double amount) {
-        if (getBalance() + overdraftLimit >= amount) {
-            super.deposit(-amount); // Using deposit with a negative amount
+    public void withdrawCents(long amount) {
+        if (AccountMoney.add(getBalanceCents(), overdraftLimit) >= amount) {
+            super.depositCents(-amount); // Using deposit with a negative amount
         }
     }
 }
 
 class BankSystem {
+    // Compare double, long cents and BigDecimal for adding up prices and paying interest
+    private static void measureArithmetic(int operations, int rounds) {
+        long[] prices = new long[1024];
+        for (int i = 0; i < prices.length; i++) {
+            prices[i] = 1 + (i * 7919L) % 10_000; // Between 0.01 and 100.00
+        }
+        double[] doublePrices = new double[prices.length];
+        BigDecimal[] decimalPrices = new BigDecimal[prices.length];
+        for (int i = 0; i < prices.length; i++) {
+            doublePrices[i] = AccountMoney.toDouble(prices[i]);
+            decimalPrices[i] = BigDecimal.valueOf(prices[i], AccountMoney.SCALE);
+        }
+        long rate = 300; // 0.03% per operation, in millionths
+        double doubleRate = 0.0003;
+        BigDecimal decimalRate = new BigDecimal("0.0003");
+        // Every loop starts over at a billion before the compound interest overflows
+        long limit = Math.multiplyExact(1_000_000_000L, AccountMoney.ONE);
+        BigDecimal decimalLimit = BigDecimal.valueOf(limit, AccountMoney.SCALE);
+
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            double doubleTotal = 0;
+            for (int i = 0; i < operations; i++) {
+                doubleTotal += doublePrices[i & 1023];
+                doubleTotal += doubleTotal * doubleRate;
+                if (doubleTotal > 1e9) {
+                    doubleTotal = 0;
+                }
+            }
+            long doubleTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long total = 0;
+            for (int i = 0; i < operations; i++) {
+                total = AccountMoney.add(total, prices[i & 1023]);
+                total = AccountMoney.add(total, AccountMoney.applyRate(total, rate, RoundingMode.HALF_EVEN));
+                if (total > limit) {
+                    total = 0;
+                }
+            }
+            long centsTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            BigDecimal decimalTotal = BigDecimal.ZERO;
+            for (int i = 0; i < operations; i++) {
+                decimalTotal = decimalTotal.add(decimalPrices[i & 1023]);
+                decimalTotal = decimalTotal.add(decimalTotal.multiply(decimalRate).setScale(AccountMoney.SCALE, RoundingMode.HALF_EVEN));
+                if (decimalTotal.compareTo(decimalLimit) > 0) {
+                    decimalTotal = BigDecimal.ZERO;
+                }
+            }
+            long decimalTime = System.nanoTime() - start;
+
+            // Round 0 warms up
+            if (round > 0) {
+                System.out.printf("%d operations: double %.2f ns, long cents %.2f ns, BigDecimal %.2f ns (%s, %s, %s)%n",
+                    operations, (double) doubleTime / operations, (double) centsTime / operations,
+                    (double) decimalTime / operations, doubleTotal, AccountMoney.format(total), decimalTotal);
+            }
+        }
+    }
+
     public static void processAccounts(List<BankAccount> accounts, double depositAmount, double withdrawAmount) {
         for (BankAccount account : accounts) {
             account.deposit(depositAmount);
             account.withdraw(withdrawAmount);
-            System.out.println(account.getAccountHolder() + "'s balance is: $" + account.getBalance());
+            System.out.println(account.getAccountHolder() + "'s balance is: $" + AccountMoney.format(account.getBalanceCents()));
         }
     }
 
@@ -109,5 +278,22 @@ class BankSystem {
 
         // Process accounts
         processAccounts(accounts, 20, 100);
+
+        // Interest is rounded to whole cents with an explicit rounding mode
+        SavingsAccount account3 = new SavingsAccount("Sam", 100.10, 0.035);
+        account3.applyInterest(RoundingMode.FLOOR);
+        System.out.println(account3.getAccountHolder() + "'s balance after interest is: $"
+            + AccountMoney.format(account3.getBalanceCents()));
+
+        // Rates are kept exactly, 0.125% of 10,000.00 is 12.50
+        SavingsAccount account4 = new SavingsAccount("Kim", 10_000, 0.00125);
+        account4.applyInterest();
+        System.out.println(account4.getAccountHolder() + "'s balance after interest is: $"
+            + AccountMoney.format(account4.getBalanceCents()));
+
+        // Run with "benchmark" to compare double, long cents and BigDecimal
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            measureArithmetic(10_000_000, 5);
+        }
     }
 }
\ No newline at end of file
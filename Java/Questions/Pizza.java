@@ -1,7 +1,41 @@
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+// Create the cent arithmetic for pizza prices. Prices are configured as doubles, and turned into
+// whole cents before anything is added up, so an order total never drifts.
+final class PizzaMoney {
+    static final int SCALE = 2;
+
+    private PizzaMoney() {
+    }
+
+    // Nearest whole cent of a configured price such as 1.5
+    static long of(double price) {
+        if (!Double.isFinite(price)) {
+            throw new IllegalArgumentException("Price must be a finite number: " + price);
+        }
+        return Math.round(price * 100);
+    }
+
+    static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    static long multiply(long cents, long quantity) {
+        return Math.multiplyExact(cents, quantity);
+    }
+
+    static double toDouble(long cents) {
+        return cents / 100.0;
+    }
+
+    static String format(long cents) {
+        return BigDecimal.valueOf(cents, SCALE).toPlainString();
+    }
+}
+
 // Create an enum to define the different sizes of pizza
 enum Size {
     // Define the basic pizza sizes
@@ -40,13 +74,18 @@ public class Pizza {
         this.toppings = toppings;
     }
 
-    public double calculatePrice() {
-        if (!sizePrices.containsKey(size.getValue())) {
+    // Price in cents, each configured price is rounded to a whole cent before it is added
+    public long calculatePriceCents() {
+        Double basePrice = sizePrices.get(size.getValue());
+        if (basePrice == null) {
             throw new IllegalArgumentException("Invalid size: " + size.getValue());
         }
-        double basePrice = sizePrices.get(size.getValue());
-        double toppingsTotal = toppingPrice * toppings.size();
-        return basePrice + toppingsTotal;
+        long toppingsTotal = PizzaMoney.multiply(PizzaMoney.of(toppingPrice), toppings.size());
+        return PizzaMoney.add(PizzaMoney.of(basePrice), toppingsTotal);
+    }
+
+    public double calculatePrice() {
+        return PizzaMoney.toDouble(calculatePriceCents());
     }
 
     public String getType() {
@@ -174,26 +213,30 @@ class Order {
         items.remove(pizza);
     }
 
-    // Create a method to calculate the total amount for order
-    public double calculateTotal() {
-        double total = 0;
+    // Create a method to calculate the total amount for order, in cents
+    public long calculateTotalCents() {
+        long total = 0;
         for (Pizza pizza : items) {
-            total += pizza.calculatePrice();
+            total = PizzaMoney.add(total, pizza.calculatePriceCents());
         }
         return total;
     }
 
+    public double calculateTotal() {
+        return PizzaMoney.toDouble(calculateTotalCents());
+    }
+
     // Create a method to pretty print the items
     public void displayOrderSummary() {
         System.out.println("Order Summary:");
         for (Pizza pizza : items) {
-            System.out.printf("- %s (%s): $%.2f%n", 
+            System.out.printf("- %s (%s): $%s%n", 
                 pizza.getType(), 
                 pizza.getSize(), 
-                pizza.calculatePrice()
+                PizzaMoney.format(pizza.calculatePriceCents())
             );
         }
-        System.out.printf("Total: $%.2f%n", calculateTotal());
+        System.out.printf("Total: $%s%n", PizzaMoney.format(calculateTotalCents()));
     }
 }
 